@@ -6,32 +6,96 @@ import java.util.ArrayList;
 
 public class Block {
 
-    public static final double COINBASE = 25;
+    public static final long COINBASE = 25 * Transaction.COIN;
 
-    private byte[] hash;
-    private byte[] prevBlockHash;
+    private Hash256 hash;
+    private Hash256 prevBlockHash;
     private Transaction coinbase;
     private ArrayList<Transaction> txs;
+    /** number of leading zero bits the hash must have, 0 for no proof of work */
+    private int difficulty;
+    private long nonce;
 
     /** {@code address} is the address to which the coinbase transaction would go */
     public Block(byte[] prevHash, PublicKey address) {
-        prevBlockHash = prevHash;
-        coinbase = new Transaction(COINBASE, address);
+        prevBlockHash = Hash256.of(prevHash);
+        coinbase = new Transaction(COINBASE, address, getPrevBlockHash());
         txs = new ArrayList<Transaction>();
     }
 
+    /**
+     * a block around a {@code coinbase} built elsewhere, e.g. received with a {@link CompactBlock};
+     * whether it pays out too much is for {@link BlockChain} to judge when the block is added
+     */
+    Block(Hash256 prevBlockHash, Transaction coinbase) {
+        this.prevBlockHash = prevBlockHash;
+        this.coinbase = coinbase;
+        txs = new ArrayList<Transaction>();
+    }
+
+    /** for subclasses that supply the transactions by overriding the getters */
+    protected Block(Hash256 hash, Hash256 prevBlockHash, int difficulty, long nonce) {
+        this.hash = hash;
+        this.prevBlockHash = prevBlockHash;
+        this.difficulty = difficulty;
+        this.nonce = nonce;
+    }
+
     public Transaction getCoinbase() {
         return coinbase;
     }
 
     public byte[] getHash() {
+        return hash == null ? null : hash.toByteArray();
+    }
+
+    public Hash256 getHash256() {
         return hash;
     }
 
     public byte[] getPrevBlockHash() {
+        return prevBlockHash == null ? null : prevBlockHash.toByteArray();
+    }
+
+    public Hash256 getPrevBlockHash256() {
         return prevBlockHash;
     }
 
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    /** require {@code difficulty} leading zero bits in the hash, call {@link #finalize} afterwards */
+    public void setDifficulty(int difficulty) {
+        if (difficulty < 0 || difficulty > 8 * Hash256.BYTES)
+            throw new IllegalArgumentException("difficulty out of range: " + difficulty);
+        this.difficulty = difficulty;
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    /** call {@link #finalize} afterwards */
+    public void setNonce(long nonce) {
+        this.nonce = nonce;
+    }
+
+    /** @return true if the hash has at least as many leading zero bits as the difficulty asks for */
+    public boolean hasValidProofOfWork() {
+        return hash != null && hasLeadingZeroBits(hash.toByteArray(), difficulty);
+    }
+
+    /** @return true if the first {@code bits} bits of {@code hash} are zero */
+    public static boolean hasLeadingZeroBits(byte[] hash, int bits) {
+        int i = 0;
+        for (; bits >= 8; bits -= 8) {
+            if (hash[i++] != 0)
+                return false;
+        }
+        return bits == 0 || (hash[i] & 0xff) >>> (8 - bits) == 0;
+    }
+
     public ArrayList<Transaction> getTransactions() {
         return txs;
     }
@@ -46,11 +110,13 @@ public class Block {
 
     public byte[] getRawBlock() {
         ArrayList<Byte> rawBlock = new ArrayList<Byte>();
-        if (prevBlockHash != null)
-            for (int i = 0; i < prevBlockHash.length; i++)
-                rawBlock.add(prevBlockHash[i]);
-        for (int i = 0; i < txs.size(); i++) {
-            byte[] rawTx = txs.get(i).getRawTx();
+        if (prevBlockHash != null) {
+            byte[] prevHash = prevBlockHash.toByteArray();
+            for (int i = 0; i < prevHash.length; i++)
+                rawBlock.add(prevHash[i]);
+        }
+        for (Transaction tx : getTransactions()) {
+            byte[] rawTx = tx.getRawTx();
             for (int j = 0; j < rawTx.length; j++) {
                 rawBlock.add(rawTx[j]);
             }
@@ -61,13 +127,32 @@ public class Block {
         return raw;
     }
 
+    /**
+     * @return a digest that has already consumed everything the block hash covers except the
+     *         nonce, so trying a nonce costs a clone and 8 more bytes instead of hashing the
+     *         transactions again. Transactions without a hash are finalized first.
+     */
+    public MessageDigest hashMidstate() throws NoSuchAlgorithmException {
+        finalizeTransactions();
+        return BlockHeader.midstate(prevBlockHash, BlockHeader.merkleRoot(this), difficulty);
+    }
+
+    /**
+     * compute the hash from the header fields: the parent's hash, the Merkle root of the coinbase
+     * and the transactions, the difficulty and the nonce. Transactions without a hash are
+     * finalized first.
+     */
     public void finalize() {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(getRawBlock());
-            hash = md.digest();
-        } catch (NoSuchAlgorithmException x) {
-            x.printStackTrace(System.err);
+        finalizeTransactions();
+        hash = BlockHeader.of(this).getHash();
+    }
+
+    private void finalizeTransactions() {
+        if (getCoinbase().getHash() == null)
+            getCoinbase().finalize();
+        for (Transaction tx : getTransactions()) {
+            if (tx.getHash() == null)
+                tx.finalize();
         }
     }
 }
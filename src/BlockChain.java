@@ -2,22 +2,99 @@
 // You should not have all the blocks added to the block chain in memory 
 // as it would cause a memory overflow.
 
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.security.PublicKey;
 import java.text.SimpleDateFormat;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 public class BlockChain {
     private static final int CUT_OFF_AGE = 10;
 
     private static final int NUMBER_OF_BLOCKS_IN_MEMORY = 1000;
 
+    private static final int MAX_ORPHAN_BLOCKS = 100;
+
+    private static final long MAX_ORPHAN_AGE_MILLIS = 20 * 60 * 1000;
+
+    // blocks with at least this many transactions are applied by the sharded applier
+    private static final int PARALLEL_APPLY_THRESHOLD = 256;
+
+    private static final int MAX_REJECTED = 10000;
+
+    private static final int EVENT_BUS_CAPACITY = 4096;
+
+    // a BlockNode with its map entry, header and date string, without the undo record
+    private static final long NODE_BYTES = 56 + 40 + 3 * MemoryEstimator.HASH256 + 64 + MemoryEstimator.HASH_MAP_ENTRY;
+
+    private static final ShardedUTXOApplier PARALLEL_APPLIER =
+            new ShardedUTXOApplier(Runtime.getRuntime().availableProcessors());
+
+    // checks the signatures of submitted transaction batches without holding the chain's lock
+    private static final ExecutorService SIGNATURE_VERIFIERS =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "tx-verifier");
+                thread.setDaemon(true);
+                return thread;
+            });
+
     private SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy HH:mm:ss");
 
     private TransactionPool txPool = new TransactionPool();
+
+    // unspent outputs as of the active tip, kept in step with it through the undo records
     private UTXOPool utxoPool = new UTXOPool();
 
+    // the block the active chain ends in
+    private BlockNode activeTip;
+
+    // the highest block whose own body and all its ancestors' bodies are stored, the chain to activate
+    private BlockNode bestCandidate;
+
+    // the highest block known, with or without a body
+    private BlockNode bestHeader;
+
+    // nodes with a body whose parent is still missing a body or an ancestor's body, by parent hash
+    private HashMap<Hash256, List<BlockNode>> waitingForBodies = new HashMap<>();
+
+    // bodies of the blocks in nodesOfBlockChain
+    private BlockStore blockStore;
+
+    // counts nodes in the order they arrive, decides between blocks of equal height
+    private long arrivalCounter;
+
+    // lowest difficulty a block may declare, 0 accepts blocks without proof of work
+    private volatile int minimumDifficulty;
+
+    // assume-valid checkpoint, blocks leading up to it are applied without signature checks
+    private Checkpoint checkpoint;
+
+    // the node of the checkpoint once the headers from it down to the oldest block in memory checked out
+    private BlockNode trustedCheckpoint;
+
+    // estimated bytes retained by the nodes of nodesOfBlockChain, bodies not included
+    private long blockTreeBytes;
+
+    // prune older blocks once the nodes and their bodies are estimated to take more, 0 for no limit
+    private long blockTreeSoftLimit;
+
+    // tip, block and mempool notifications for subscribers
+    private ChainEventBus events = new ChainEventBus(EVENT_BUS_CAPACITY, ChainEventBus.OverflowPolicy.DROP);
+
+    // hashes of blocks and transactions that were found invalid
+    private RejectionCache invalidBlocks = new RejectionCache(MAX_REJECTED);
+    private RejectionCache invalidTxs = new RejectionCache(MAX_REJECTED);
+
+    // blocks whose parent has not arrived yet
+    private OrphanBlockPool orphanPool = new OrphanBlockPool(MAX_ORPHAN_BLOCKS, MAX_ORPHAN_AGE_MILLIS);
+
     // Look up table for blocks of the blockchain containing Hash and corresponding block as entries
-    public HashMap<byte[] , BlockNode> nodesOfBlockChain = new HashMap<>();
+    public HashMap<Hash256, BlockNode> nodesOfBlockChain = new HashMap<>();
 
 
     /**
@@ -25,52 +102,80 @@ public class BlockChain {
      * block
      */
     public BlockChain(Block genesisBlock) {
-        Date date = new Date();
-        dateFormat.format(date);
-        genesisBlock.finalize();
-        BlockNode genesisNode = new BlockNode(genesisBlock, dateFormat.format(new Date()), 1);
-        nodesOfBlockChain.put(genesisBlock.getHash(), genesisNode);
+        this(genesisBlock, new MemoryBlockStore());
     }
 
+    /** same as {@link #BlockChain(Block)}, keeping block bodies in {@code blockStore} */
+    public BlockChain(Block genesisBlock, BlockStore blockStore) {
+        this.blockStore = blockStore;
+        txPool.setEventBus(events);
+        genesisBlock.finalize();
+        BlockNode genesisNode = new BlockNode(BlockHeader.of(genesisBlock), dateFormat.format(new Date()), 1);
+        BlockUndo genesisUndo = new BlockUndo();
+        addCoinbaseOutputs(genesisBlock, genesisUndo);
+        genesisNode.undo = genesisUndo;
+        blockTreeBytes += genesisNode.estimatedBytes();
+        genesisNode.hasBody = true;
+        genesisNode.haveChainBodies = true;
+        blockStore.put(genesisBlock);
+        nodesOfBlockChain.put(genesisBlock.getHash256(), genesisNode);
+        activeTip = genesisNode;
+        bestCandidate = genesisNode;
+        bestHeader = genesisNode;
+    }
 
     /** Get the maximum height block */
-    public Block getMaxHeightBlock() {
-        //get one of the nodes with max height to extract the maximum height value from it
-        BlockNode oneMaximumHeightNode =  nodesOfBlockChain.values().stream()
-                                                                        .max(Comparator.comparing(node -> node.getHeight()))
-                                                                        .orElse(null);
+    public synchronized Block getMaxHeightBlock() {
+        //the tip only moves to strictly higher blocks, so it is the oldest block of maximum height
+        return activeTip.getBlockOfThisNode();
+    }
 
-        final int maximum = (oneMaximumHeightNode != null) ? oneMaximumHeightNode.getHeight() : 1;
-        //get all nodes with maximum height
-        List<BlockNode> maximumHeightNodes = nodesOfBlockChain.values().stream()
-                                                                       .filter(node -> node.getHeight() == maximum)
-                                                                       .collect(Collectors.toList());
+    /** @return the hash of the max height block, without loading its body */
+    public synchronized Hash256 getMaxHeightHash256() {
+        return activeTip.getHeader().getHash();
+    }
 
-        //receive the oldest block of maximum height in case there are more than one element of maximum height
-        if(maximumHeightNodes.size() > 1){
-            maximumHeightNodes.sort(Comparator.comparing(node -> node.getDateOfBlock()));
-        }
+    /**
+     * Get the UTXOPool for mining a new block on top of max height block. This copies the whole
+     * pool with its indexes; {@link #queryUTXOs}, {@link #utxosOf} and {@link #utxosOfTx} read it
+     * in place.
+     */
+    public synchronized UTXOPool getMaxHeightUTXOPool() {
+        return new UTXOPool(utxoPool);
+    }
+
+    /**
+     * @return the result of {@code query} on a stream over the unspent outputs as of the max height
+     *         block, without copying them. The query runs under the chain's lock, so no block
+     *         changes the pool meanwhile; the stream must not be used after it returns.
+     */
+    public synchronized <R> R queryUTXOs(boolean parallel,
+                                         Function<Stream<Map.Entry<UTXO, Transaction.Output>>, R> query) {
+        return query.apply(utxoPool.entries(parallel));
+    }
 
-        return maximumHeightNodes.get(0).getBlockOfThisNode(); // oldest block of maxHeight is the first of this list
+    /** @return the unspent outputs created by the transaction with hash {@code txHash}, in index order */
+    public synchronized SortedSet<UTXO> utxosOfTx(Hash256 txHash) {
+        return new TreeSet<UTXO>(utxoPool.utxosOfTx(txHash));
     }
 
-    /** Get the UTXOPool for mining a new block on top of max height block */
-    public UTXOPool getMaxHeightUTXOPool() {
-        ArrayList<Transaction> maxHeightBlockTxs = getMaxHeightBlock().getTransactions();
-        UTXOPool maxHeightUTXOPool = new UTXOPool();
+    /** @return the total value of the unspent outputs of {@code address} as of the max height block */
+    public synchronized long balanceOf(PublicKey address) {
+        return utxoPool.balanceOf(address);
+    }
 
-        //adding all the outputs from transactions that are in the max heigth block
-        for(Transaction tx : maxHeightBlockTxs) {
-            for(int index = 0; index <tx.getOutputs().size(); index++) {
-                maxHeightUTXOPool.addUTXO(new UTXO(tx.getHash(), index), tx.getOutput(index));
-            }
-        }
-        return maxHeightUTXOPool;
+    /** @return the unspent outputs of {@code address} as of the max height block */
+    public synchronized ArrayList<UTXO> utxosOf(PublicKey address) {
+        return utxoPool.utxosOf(address);
     }
 
-    /** Get the transaction pool to mine a new block */
-    public TransactionPool getTransactionPool() {
-        return this.txPool;
+    /**
+     * Get the transaction pool to mine a new block. This is a copy taken under the chain's lock, so
+     * it can be read while blocks and transactions keep arriving; changes to it do not reach the
+     * chain, use {@link #addTransaction} for that.
+     */
+    public synchronized TransactionPool getTransactionPool() {
+        return new TransactionPool(this.txPool);
     }
 
     /**
@@ -83,110 +188,968 @@ public class BlockChain {
      * CUT_OFF_AGE + 1}. As soon as {@code height > CUT_OFF_AGE + 1}, you cannot create a new block
      * at height 2.
      * 
+     * <p>
+     * A block whose parent is not known yet is buffered and connected as soon as its parent is.
+     * The active chain always ends in the highest block whose whole branch has bodies. Blocks are
+     * validated when that branch is activated, so a block on a shorter side branch is stored
+     * without validation and checked once its branch overtakes the active chain, by rolling the
+     * UTXO pool back to the fork point and forward along the branch.
+     * 
      * @return true if block is successfully added
      */
     public boolean addBlock(Block block) {
-        TxHandler txHandler = new TxHandler(this.utxoPool);
-        byte[]  prevBlockHash = block.getPrevBlockHash();
-        ArrayList<Transaction> blockTx = block.getTransactions();
-        BlockNode prevBlock = this.nodesOfBlockChain.get(prevBlockHash);
-        BlockNode maxHeightBlock = nodesOfBlockChain.get(getMaxHeightBlock().getHash());
+        return addBlock(block, Collections.emptySet());
+    }
 
+    /**
+     * Same as {@link #addBlock(Block)}, but the transactions whose hashes are in
+     * {@code verifiedTxs} already had all their input signatures checked.
+     */
+    synchronized boolean addBlock(Block block, Set<Hash256> verifiedTxs) {
         // the genesis block is the only one that does not have a previous hash
-        if(block.getPrevBlockHash() == null){
+        if(block.getPrevBlockHash256() == null || block.getHash256() == null){
+            return false;
+        }
+        //the hash must be the one of the block's own contents, nothing is remembered under a claimed hash
+        BlockHeader header = BlockHeader.of(block);
+        if(header == null || !header.getHash().equals(block.getHash256())){
+            return false;
+        }
+        if(invalidBlocks.lookup(block.getHash256()) != null){
+            return false;
+        }
+        if(invalidBlocks.lookup(block.getPrevBlockHash256()) != null){
+            rejectBlock(block.getHash256(), RejectionCache.Reason.INVALID_PARENT);
+            return false;
+        }
+        if(block.getDifficulty() < minimumDifficulty || !block.hasValidProofOfWork()){
+            rejectBlock(block.getHash256(), RejectionCache.Reason.INSUFFICIENT_WORK);
             return false;
         }
 
-        if(prevBlock.getHeight() < maxHeightBlock.getHeight() - CUT_OFF_AGE){
+        BlockNode prevBlock = this.nodesOfBlockChain.get(block.getPrevBlockHash256());
+        if(prevBlock == null){
+            //parent unknown so far, keep the block until the parent is connected
+            orphanPool.addOrphan(block);
             return false;
         }
 
-        Transaction[] validTxs = new Transaction[blockTx.size()];
-        int i = 0;
-        for(Transaction tx: blockTx){
-            validTxs[i] = tx;
-            i++;
+        if(!connectBlock(block, header, prevBlock, verifiedTxs)){
+            return false;
         }
-       txHandler.handleTxs(validTxs);
+        connectOrphans(block.getHash256());
+        return true;
+    }
 
-        // the genesis block is the only one that does not have a previous hash
-        if(block.getPrevBlockHash() == null){
+    /**
+     * Add the header of a block whose body is not available yet, so the best chain can be tracked
+     * ahead of the bodies. The body is passed to {@link #addBlock} later and must match the
+     * header. Headers without enough proof of work are rejected like blocks.
+     *
+     * @return true if the header is new and extends a known block
+     */
+    public synchronized boolean addHeader(BlockHeader header) {
+        if(header.getPrevBlockHash() == null || nodesOfBlockChain.containsKey(header.getHash())){
+            return false;
+        }
+        if(invalidBlocks.lookup(header.getHash()) != null || invalidBlocks.lookup(header.getPrevBlockHash()) != null){
+            return false;
+        }
+        if(header.getDifficulty() < minimumDifficulty || !header.hasValidProofOfWork()){
+            rejectBlock(header.getHash(), RejectionCache.Reason.INSUFFICIENT_WORK);
+            return false;
+        }
+        BlockNode prevBlock = nodesOfBlockChain.get(header.getPrevBlockHash());
+        if(prevBlock == null || prevBlock.getHeight() < activeTip.getHeight() - CUT_OFF_AGE){
+            return false;
+        }
+        if(conflictsWithCheckpoint(header.getHash(), prevBlock)){
+            rejectBlock(header.getHash(), RejectionCache.Reason.CHECKPOINT_MISMATCH);
+            return false;
+        }
+        insertNode(header, prevBlock);
+        return true;
+    }
+
+    /**
+     * @return estimated bytes retained per structure: the block tree nodes with their undo
+     *         records ("blockTree"), the block bodies ("blockStore"), the UTXO pool ("utxoPool")
+     *         and the transaction pool ("txPool")
+     */
+    public synchronized Map<String, Long> getMemoryUsage() {
+        Map<String, Long> usage = new LinkedHashMap<>();
+        usage.put("blockTree", blockTreeBytes);
+        usage.put("blockStore", blockStore.getEstimatedBytes());
+        usage.put("utxoPool", utxoPool.getEstimatedBytes());
+        usage.put("txPool", txPool.getEstimatedBytes());
+        return usage;
+    }
+
+    /**
+     * Prune older blocks whenever the block tree and the block bodies are estimated to take more
+     * than {@code bytes}, keeping at least the blocks a fork within the cut-off age needs. 0
+     * removes the limit.
+     */
+    public synchronized void setBlockTreeSoftLimit(long bytes) {
+        blockTreeSoftLimit = bytes;
+    }
+
+    /**
+     * Evict the oldest pool transactions whenever the pool is estimated to take more than
+     * {@code bytes}. 0 removes the limit.
+     */
+    public synchronized void setTransactionPoolSoftLimit(long bytes) {
+        txPool.setSoftLimit(bytes);
+    }
+
+    /** reject blocks whose declared difficulty is below {@code difficulty} from now on */
+    public void setMinimumDifficulty(int difficulty) {
+        minimumDifficulty = difficulty;
+    }
+
+    public int getMinimumDifficulty() {
+        return minimumDifficulty;
+    }
+
+    /**
+     * Enable assume-valid import up to {@code checkpoint}, or disable it with null. Once the
+     * checkpoint block is known, as a header or a full block, the blocks of its branch up to it
+     * are applied without checking signatures or amounts; only the spent outputs are looked up and
+     * the coinbase is held to the block reward.
+     * Blocks above the checkpoint are fully validated. A different block at the checkpoint height
+     * is rejected. The checkpoint is only trusted once the headers from it down to the oldest
+     * block in memory have valid proof of work and each commits to its parent.
+     * <p>
+     * For a cold start, add the headers first ({@link #addHeader}) so the checkpoint is known
+     * before its ancestors' bodies arrive.
+     */
+    public synchronized void setCheckpoint(Checkpoint checkpoint) {
+        this.checkpoint = checkpoint;
+        this.trustedCheckpoint = null;
+    }
+
+    public synchronized Checkpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * @return true if the block with hash {@code blockHash} is at or below the checkpoint on its
+     *         branch, so its signatures need not be checked
+     */
+    synchronized boolean isAssumedValid(Hash256 blockHash) {
+        BlockNode node = nodesOfBlockChain.get(blockHash);
+        return node != null && isAssumedValid(node);
+    }
+
+    private boolean isAssumedValid(BlockNode node) {
+        if(checkpoint == null || node.getHeight() > checkpoint.getHeight()){
             return false;
         }
-        else {
-            TransactionPool newTxPool = new TransactionPool();
-            for(Transaction tx : validTxs){
-                newTxPool.addTransaction(tx);
+        BlockNode checkpointNode = trustedCheckpointNode();
+        return checkpointNode != null && checkpointNode.getAncestor(node.getHeight()) == node;
+    }
+
+    /**
+     * @return the node of the checkpoint, or null if it is not known or its header chain does not
+     *         check out. Header hashes are computed from their contents, so a node with the
+     *         checkpoint hash holds the checkpoint's real header; each header below it must link
+     *         to its parent's hash and carry valid proof of work. The walk is done once per node.
+     */
+    private BlockNode trustedCheckpointNode() {
+        BlockNode checkpointNode = nodesOfBlockChain.get(checkpoint.getHash());
+        if(checkpointNode == null || checkpointNode.getHeight() != checkpoint.getHeight()){
+            return null;
+        }
+        if(checkpointNode == trustedCheckpoint){
+            return checkpointNode;
+        }
+        //down to the genesis block or the oldest block still in memory
+        for(BlockNode walk = checkpointNode; walk.getParent() != null; walk = walk.getParent()){
+            BlockHeader header = walk.getHeader();
+            if(!header.hasValidProofOfWork() || !walk.getParent().getHash().equals(header.getPrevBlockHash())){
+                return null;
+            }
+        }
+        trustedCheckpoint = checkpointNode;
+        return checkpointNode;
+    }
+
+    // a block that would sit at the checkpoint height with another hash can never be on the chain
+    private boolean conflictsWithCheckpoint(Hash256 hash, BlockNode prevBlock) {
+        return checkpoint != null && prevBlock.getHeight() + 1 == checkpoint.getHeight()
+                && !checkpoint.getHash().equals(hash);
+    }
+
+    /** @return the height of the highest block known, including blocks whose body is missing */
+    public synchronized int getBestHeaderHeight() {
+        return bestHeader.getHeight();
+    }
+
+    /** connect all buffered orphans that descend from the block with hash {@code parentHash} */
+    private void connectOrphans(Hash256 parentHash) {
+        ArrayDeque<Hash256> connectedParents = new ArrayDeque<>();
+        connectedParents.add(parentHash);
+        while(!connectedParents.isEmpty()){
+            Hash256 connectedHash = connectedParents.poll();
+            for(Block orphan : orphanPool.takeChildren(connectedHash)){
+                BlockNode parent = nodesOfBlockChain.get(connectedHash);
+                if(parent != null && connectBlock(orphan, BlockHeader.of(orphan), parent, Collections.emptySet())){
+                    connectedParents.add(orphan.getHash256());
+                }
+            }
+        }
+    }
+
+    /**
+     * remember the block with hash {@code blockHash} as invalid, together with all buffered orphans
+     * descending from it
+     */
+    synchronized void rejectBlock(Hash256 blockHash, RejectionCache.Reason reason) {
+        invalidBlocks.reject(blockHash, reason);
+        ArrayDeque<Hash256> rejectedParents = new ArrayDeque<>();
+        rejectedParents.add(blockHash);
+        while(!rejectedParents.isEmpty()){
+            for(Block orphan : orphanPool.takeChildren(rejectedParents.poll())){
+                invalidBlocks.reject(orphan.getHash256(), RejectionCache.Reason.INVALID_PARENT);
+                rejectedParents.add(orphan.getHash256());
             }
-            UTXOPool newUTXOPool = new UTXOPool(txHandler.getUTXOPool());
-            this.txPool = newTxPool;
-            this.utxoPool = newUTXOPool;
+        }
+    }
 
-            this.txPool.addTransaction(block.getCoinbase()); //the coinbase transaction is added if the block is valid
+    /** {@code header} is the one computed from {@code block}, and its hash is the block's hash */
+    private boolean connectBlock(Block block, BlockHeader header, BlockNode prevBlock, Set<Hash256> verifiedTxs) {
+        if(prevBlock.getHeight() < activeTip.getHeight() - CUT_OFF_AGE){
+            return false;
+        }
+        if(conflictsWithCheckpoint(block.getHash256(), prevBlock)){
+            rejectBlock(block.getHash256(), RejectionCache.Reason.CHECKPOINT_MISMATCH);
+            return false;
         }
 
-        //Creating a new BlockNode and adding it to the hashmap in BlockChain
-        nodesOfBlockChain.put(block.getHash(), new BlockNode(block, dateFormat.format(new Date()), nodesOfBlockChain.get(block.getPrevBlockHash()).getHeight()+1));
+        BlockNode node = nodesOfBlockChain.get(block.getHash256());
+        if(node == null){
+            node = insertNode(header, prevBlock);
+        }
+        else if(node.hasBody){
+            return false; //already added
+        }
+        else if(node.getParent() != prevBlock
+                || !header.getPrevBlockHash().equals(node.getHeader().getPrevBlockHash())
+                || !header.getMerkleRoot().equals(node.getHeader().getMerkleRoot())){
+            return false; //the body does not belong to the header
+        }
+        blockStore.put(block);
+        node.hasBody = true;
+        if(prevBlock.haveChainBodies){
+            markChainBodies(node);
+        }
+        else{
+            waitingForBodies.computeIfAbsent(prevBlock.getHash(), k -> new ArrayList<>()).add(node);
+        }
+
+        activateBestChain(verifiedTxs);
+        if(nodesOfBlockChain.get(block.getHash256()) != node){
+            return false; //the block or one of its ancestors turned out to be invalid
+        }
 
         //if 1000 nodes are in the current blockchain, the number is reduced to
         if(nodesOfBlockChain.size() >= NUMBER_OF_BLOCKS_IN_MEMORY){
-            HashMap<byte[], BlockNode> newMap = new HashMap<>();
             //split the hashmap and take the newer half
-            int half = nodesOfBlockChain.entrySet().size()/2;
+            pruneBelow(activeTip.getHeight() - NUMBER_OF_BLOCKS_IN_MEMORY/2);
+        }
+        //over the soft limit give up the older half of what is left, but keep what a fork may still need
+        if(blockTreeSoftLimit > 0 && blockTreeBytes + blockStore.getEstimatedBytes() > blockTreeSoftLimit){
+            int lowest = activeTip.getHeight();
+            for(BlockNode kept : nodesOfBlockChain.values()){
+                lowest = Math.min(lowest, kept.getHeight());
+            }
+            pruneBelow(Math.min((lowest + activeTip.getHeight()) / 2, activeTip.getHeight() - CUT_OFF_AGE - 1));
+        }
+        return true;
+    }
+
+    /** drop all nodes below {@code minHeight} together with their bodies */
+    private void pruneBelow(int minHeight) {
+        HashMap<Hash256, BlockNode> newMap = new HashMap<>();
+        for(HashMap.Entry<Hash256, BlockNode> entry : nodesOfBlockChain.entrySet()){
+            if(entry.getValue().getHeight() >= minHeight){
+                newMap.put(entry.getKey(), entry.getValue());
+            }
+            else{
+                //persist the other nodes in some external File
+                blockStore.remove(entry.getKey());
+                waitingForBodies.remove(entry.getKey());
+                blockTreeBytes -= entry.getValue().estimatedBytes();
+            }
+        }
+        if(newMap.size() == nodesOfBlockChain.size()){
+            return;
+        }
+        //cut the links into the pruned part so it can be garbage collected
+        for(BlockNode kept : newMap.values()){
+            kept.unlinkBelow(minHeight);
+        }
+        nodesOfBlockChain = newMap; //only the latest are inside the blockChain
+    }
+
+    private BlockNode insertNode(BlockHeader header, BlockNode prevBlock) {
+        BlockNode node = new BlockNode(header, dateFormat.format(new Date()), prevBlock);
+        nodesOfBlockChain.put(header.getHash(), node);
+        blockTreeBytes += node.estimatedBytes();
+        if(node.getHeight() > bestHeader.getHeight()){
+            bestHeader = node;
+        }
+        return node;
+    }
+
+    /** {@code node} and all descendants waiting for it now have the bodies of their whole branch */
+    private void markChainBodies(BlockNode node) {
+        ArrayDeque<BlockNode> complete = new ArrayDeque<>();
+        complete.add(node);
+        while(!complete.isEmpty()){
+            BlockNode next = complete.poll();
+            next.haveChainBodies = true;
+            if(next.getHeight() > bestCandidate.getHeight()){
+                bestCandidate = next;
+            }
+            List<BlockNode> waiting = waitingForBodies.remove(next.getHash());
+            if(waiting != null){
+                complete.addAll(waiting);
+            }
+        }
+    }
 
-            for(HashMap.Entry<byte[], BlockNode> entry : nodesOfBlockChain.entrySet()){
-                if(entry.getValue().getHeight() >= half){
-                    newMap.put(entry.getKey(), entry.getValue());
+    /**
+     * Switch the active chain to {@link #bestCandidate}, validating the blocks of its branch that
+     * were never connected. If one of them is invalid it is dropped with its descendants and the
+     * next best candidate is tried.
+     */
+    private void activateBestChain(Set<Hash256> verifiedTxs) {
+        while(bestCandidate != activeTip && bestCandidate.getHeight() > activeTip.getHeight()){
+            BlockNode oldTip = activeTip;
+            BlockNode target = bestCandidate;
+            BlockNode forkPoint = findForkPoint(target, oldTip);
+            if(forkPoint == null){
+                return; //branches off below the blocks kept in memory
+            }
+            List<BlockNode> disconnected = disconnectTo(forkPoint);
+            List<BlockNode> connected = new ArrayList<>();
+            BlockNode failed = null;
+            for(BlockNode node : pathFrom(forkPoint, target)){
+                if(node.undo == null){
+                    node.undo = isAssumedValid(node)
+                            ? applyTrusted(node.getBlockOfThisNode(), verifiedTxs)
+                            : applyBlock(node.getBlockOfThisNode(), verifiedTxs);
+                    if(node.undo == null){
+                        failed = node;
+                        break;
+                    }
+                    blockTreeBytes += MemoryEstimator.undo(node.undo);
                 }
                 else{
-                    //persist the other nodes in some external File
+                    node.undo.applyTo(utxoPool);
+                }
+                activeTip = node;
+                connected.add(node);
+            }
+
+            if(failed != null){
+                //not all transactions of the block are valid
+                dropInvalid(failed);
+                if(activeTip.getHeight() <= oldTip.getHeight()){
+                    disconnectTo(forkPoint);
+                    reconnectTo(oldTip, forkPoint);
+                    continue;
                 }
             }
-            nodesOfBlockChain = newMap; //only the 500 latest are inside the blockChain
+            //transactions of the abandoned branch go back to the pool, the new branch confirms its own
+            for(BlockNode node : disconnected){
+                Block body = node.getBlockOfThisNode();
+                if(body != null){
+                    for(Transaction tx : body.getTransactions()){
+                        txPool.addTransaction(tx);
+                    }
+                }
+            }
+            for(BlockNode node : connected){
+                for(Transaction tx : node.getBlockOfThisNode().getTransactions()){
+                    txPool.confirmTransaction(tx.getHash256());
+                }
+            }
+            publishActivation(disconnected, connected);
         }
-        return true;
     }
 
-    /** Add a transaction to the transaction pool */
-    public void addTransaction(Transaction tx) {
-        txPool.addTransaction(tx);
+    private void publishActivation(List<BlockNode> disconnected, List<BlockNode> connected) {
+        if(!events.hasSubscribers()){
+            return;
+        }
+        for(BlockNode node : disconnected){
+            events.publishBlock(ChainEvent.Type.BLOCK_DISCONNECTED, node.getBlockOfThisNode(), node.getHeight());
+        }
+        for(BlockNode node : connected){
+            events.publishBlock(ChainEvent.Type.BLOCK_CONNECTED, node.getBlockOfThisNode(), node.getHeight());
+        }
+        if(!connected.isEmpty()){
+            events.publishBlock(ChainEvent.Type.TIP_CHANGED, activeTip.getBlockOfThisNode(), activeTip.getHeight());
+        }
+    }
+
+    /**
+     * @return the bus on which tip changes, connected and disconnected blocks and transactions
+     *         entering or leaving the pool are published. It drops events rather than slowing
+     *         down the chain when a subscriber falls a whole ring behind.
+     */
+    public ChainEventBus getEventBus() {
+        return events;
+    }
+
+    /** remove {@code failed} and all its descendants from the tree and remember them as invalid */
+    private void dropInvalid(BlockNode failed) {
+        rejectBlock(failed.getHash(), RejectionCache.Reason.INVALID_TRANSACTIONS);
+        Iterator<BlockNode> nodes = nodesOfBlockChain.values().iterator();
+        while(nodes.hasNext()){
+            BlockNode node = nodes.next();
+            if(node.getHeight() >= failed.getHeight() && node.getAncestor(failed.getHeight()) == failed){
+                nodes.remove();
+                blockTreeBytes -= node.estimatedBytes();
+                blockStore.remove(node.getHash());
+                waitingForBodies.remove(node.getHash());
+                if(node != failed){
+                    rejectBlock(node.getHash(), RejectionCache.Reason.INVALID_PARENT);
+                }
+            }
+        }
+        //the best blocks may have been among the dropped ones
+        bestCandidate = activeTip;
+        bestHeader = activeTip;
+        for(BlockNode node : nodesOfBlockChain.values()){
+            if(node.haveChainBodies && isBetter(node, bestCandidate)){
+                bestCandidate = node;
+            }
+            if(isBetter(node, bestHeader)){
+                bestHeader = node;
+            }
+        }
+    }
+
+    // higher wins, the earlier arrival wins between blocks of equal height
+    private static boolean isBetter(BlockNode a, BlockNode b) {
+        return a.getHeight() > b.getHeight()
+                || (a.getHeight() == b.getHeight() && a.getArrivalSequence() < b.getArrivalSequence());
+    }
+
+    /** @return the blocks after {@code forkPoint} up to its descendant {@code target}, in chain order */
+    private List<BlockNode> pathFrom(BlockNode forkPoint, BlockNode target) {
+        List<BlockNode> branch = new ArrayList<>();
+        for(BlockNode node = target; node != forkPoint; node = node.getParent()){
+            branch.add(node);
+        }
+        Collections.reverse(branch);
+        return branch;
+    }
+
+    /**
+     * Validate all transactions of {@code block} against the UTXO pool and apply them to it
+     * together with the coinbase.
+     *
+     * @return the record of the changes, or null (leaving the pool untouched) if any transaction
+     *         is invalid
+     */
+    private BlockUndo applyBlock(Block block, Set<Hash256> verifiedTxs) {
+        if(!hasValidCoinbase(block)){
+            return null;
+        }
+        Transaction[] blockTxs = block.getTransactions().toArray(new Transaction[0]);
+        BlockUndo undo;
+        if(blockTxs.length >= PARALLEL_APPLY_THRESHOLD){
+            undo = PARALLEL_APPLIER.apply(utxoPool, blockTxs, verifiedTxs);
+            if(undo == null){
+                return null;
+            }
+        }
+        else{
+            undo = new BlockUndo();
+            TxHandler txHandler = new TxHandler(this.utxoPool, verifiedTxs, undo);
+            if(txHandler.handleTxs(blockTxs).length != blockTxs.length){
+                undo.undoFrom(utxoPool);
+                return null;
+            }
+        }
+        addCoinbaseOutputs(block, undo);
+        return undo;
+    }
+
+    /**
+     * Apply {@code block} without validating its transactions, for blocks below the assume-valid
+     * checkpoint. Only the spent outputs are looked up, as the undo record needs them; if one is
+     * missing the block goes through {@link #applyBlock} instead. The coinbase is still checked,
+     * that is cheap.
+     */
+    private BlockUndo applyTrusted(Block block, Set<Hash256> verifiedTxs) {
+        if(!hasValidCoinbase(block)){
+            return null;
+        }
+        BlockUndo undo = new BlockUndo();
+        for(Transaction tx : block.getTransactions()){
+            for(Transaction.Input in : tx.getInputs()){
+                Hash256 prevTxHash = Hash256.tryOf(in.prevTxHash);
+                Transaction.Output spent = prevTxHash == null ? null : utxoPool.getTxOutput(new UTXO(prevTxHash, in.outputIndex));
+                if(spent == null){
+                    //transactions not in dependency order, or not valid after all
+                    undo.undoFrom(utxoPool);
+                    return applyBlock(block, verifiedTxs);
+                }
+                UTXO utxo = new UTXO(prevTxHash, in.outputIndex);
+                utxoPool.removeUTXO(utxo);
+                undo.spend(utxo, spent);
+            }
+            for(int i = 0; i < tx.numOutputs(); i++){
+                UTXO utxo = new UTXO(tx.getHash256(), i);
+                utxoPool.addUTXO(utxo, tx.getOutput(i));
+                undo.create(utxo, tx.getOutput(i));
+            }
+        }
+        addCoinbaseOutputs(block, undo);
+        return undo;
+    }
+
+    // the coinbase may pay out no more than the block reward, and no output may be negative; its
+    // only input names the parent, so it cannot share its hash with an earlier coinbase of the chain
+    private static boolean hasValidCoinbase(Block block) {
+        Transaction coinbase = block.getCoinbase();
+        if(coinbase.numInputs() != 1 || !Arrays.equals(coinbase.getInput(0).prevTxHash, block.getPrevBlockHash())){
+            return false;
+        }
+        for(Transaction.Output op : coinbase.getOutputs()){
+            if(op.value < 0){
+                return false;
+            }
+        }
+        try{
+            return coinbase.sumOutputs() <= Block.COINBASE;
+        }
+        catch(ArithmeticException overflow){
+            return false;
+        }
+    }
+
+    private void addCoinbaseOutputs(Block block, BlockUndo undo) {
+        Transaction coinbase = block.getCoinbase();
+        for(int i = 0; i < coinbase.numOutputs(); i++){
+            UTXO utxo = new UTXO(coinbase.getHash256(), i);
+            undo.create(utxo, coinbase.getOutput(i));
+            utxoPool.addUTXO(utxo, coinbase.getOutput(i));
+        }
+    }
+
+    /**
+     * @return the last block {@code a} and {@code b} have in common, or null if it has already been
+     *         pruned from memory
+     */
+    public BlockNode findForkPoint(BlockNode a, BlockNode b) {
+        //same scheme as Bitcoin's LastCommonAncestor: level both nodes, then step back in lockstep
+        int height = Math.min(a.getHeight(), b.getHeight());
+        a = a.getAncestor(height);
+        b = b.getAncestor(height);
+        while(a != b){
+            if(a == null || b == null){
+                return null;
+            }
+            if(a.skip != null && b.skip != null && a.skip != b.skip){
+                //both skip to the same height and differ there, so the fork point is below it
+                a = a.skip;
+                b = b.skip;
+            }
+            else{
+                a = a.getParent();
+                b = b.getParent();
+            }
+        }
+        return a;
+    }
+
+    /** @return true if {@code node} is part of the active chain */
+    public synchronized boolean isInActiveChain(BlockNode node) {
+        return activeTip.getAncestor(node.getHeight()) == node;
+    }
+
+    /**
+     * @return the number of blocks of the active chain from the block with hash {@code blockHash}
+     *         up to the tip (1 for the tip itself), or 0 if that block is not on the active chain
+     */
+    public synchronized int getConfirmations(byte[] blockHash) {
+        Hash256 hash = Hash256.tryOf(blockHash);
+        BlockNode node = hash == null ? null : nodesOfBlockChain.get(hash);
+        if(node == null || !isInActiveChain(node)){
+            return 0;
+        }
+        return activeTip.getHeight() - node.getHeight() + 1;
+    }
+
+    /**
+     * roll the UTXO pool back from the active tip to {@code forkPoint}
+     *
+     * @return the blocks that were rolled back, tip first
+     */
+    private List<BlockNode> disconnectTo(BlockNode forkPoint) {
+        List<BlockNode> disconnected = new ArrayList<>();
+        for(BlockNode node = activeTip; node != forkPoint; node = node.getParent()){
+            node.undo.undoFrom(utxoPool);
+            disconnected.add(node);
+        }
+        activeTip = forkPoint;
+        return disconnected;
+    }
+
+    /**
+     * roll the UTXO pool forward from {@code forkPoint} to its descendant {@code target}
+     *
+     * @return the blocks that were rolled forward, in chain order
+     */
+    private List<BlockNode> reconnectTo(BlockNode target, BlockNode forkPoint) {
+        List<BlockNode> branch = pathFrom(forkPoint, target);
+        for(BlockNode node : branch){
+            node.undo.applyTo(utxoPool);
+        }
+        activeTip = target;
+        return branch;
+    }
+
+    /**
+     * Add a transaction to the transaction pool
+     *
+     * @return false if the transaction is already in the pool
+     */
+    public synchronized boolean addTransaction(Transaction tx) {
+        return txPool.addTransaction(tx);
+    }
+
+    /** @return true if the transaction pool holds a transaction with hash {@code txHash} */
+    public synchronized boolean containsTransaction(Hash256 txHash) {
+        return txPool.contains(txHash);
+    }
+
+    /**
+     * Check {@code txs} in order and add the ones that may become valid to the transaction pool.
+     * The chain's lock is taken twice per batch: once to look up the outputs the transactions
+     * spend, and once for the remaining checks and the pool inserts. In between, the signatures
+     * are verified in parallel without holding it; the output an outpoint refers to never
+     * changes, so a signature checked against it stays valid. {@code added[i]} tells whether
+     * {@code txs.get(i)} entered the pool; it did not if it was rejected or already there.
+     * Transactions the pool already holds are found in the first step and not checked at all.
+     *
+     * @return per transaction why it can never be valid, null if it is valid or may become valid
+     */
+    public RejectionCache.Reason[] addTransactions(List<Transaction> txs, boolean[] added) {
+        Transaction.Output[][] spent = new Transaction.Output[txs.size()][];
+        boolean[] pooled = new boolean[txs.size()];
+        synchronized(this){
+            for(int i = 0; i < txs.size(); i++){
+                Transaction tx = txs.get(i);
+                //a resubmission costs one Bloom filter probe, not a round of signature checks
+                pooled[i] = tx.getHash256() != null && txPool.contains(tx.getHash256());
+                if(!pooled[i]){
+                    spent[i] = spentOutputs(tx);
+                }
+            }
+        }
+
+        List<CompletableFuture<RejectionCache.Reason>> checks = new ArrayList<>(txs.size());
+        for(int i = 0; i < txs.size(); i++){
+            Transaction tx = txs.get(i);
+            Transaction.Output[] outputs = spent[i];
+            checks.add(pooled[i] ? CompletableFuture.completedFuture(null)
+                    : CompletableFuture.supplyAsync(() -> checkSignatures(tx, outputs), SIGNATURE_VERIFIERS));
+        }
+        RejectionCache.Reason[] reasons = new RejectionCache.Reason[txs.size()];
+        Set<Hash256> verifiedTxs = new HashSet<>();
+        for(int i = 0; i < txs.size(); i++){
+            reasons[i] = checks.get(i).join();
+            if(reasons[i] == null && !pooled[i] && !Arrays.asList(spent[i]).contains(null)){
+                verifiedTxs.add(txs.get(i).getHash256()); //every input was checked
+            }
+        }
+
+        synchronized(this){
+            TxHandler checker = new TxHandler(utxoPool, verifiedTxs, null);
+            for(int i = 0; i < txs.size(); i++){
+                if(reasons[i] == null && !pooled[i]){
+                    reasons[i] = checker.getPermanentRejectReason(txs.get(i));
+                }
+                added[i] = reasons[i] == null && !pooled[i] && txPool.addTransaction(txs.get(i));
+            }
+        }
+        return reasons;
+    }
+
+    /** @return the outputs the inputs of {@code tx} spend, null where the output is not in the pool */
+    private Transaction.Output[] spentOutputs(Transaction tx) {
+        Transaction.Output[] spent = new Transaction.Output[tx.numInputs()];
+        for(int i = 0; i < spent.length; i++){
+            Transaction.Input in = tx.getInput(i);
+            Hash256 prevTxHash = Hash256.tryOf(in.prevTxHash);
+            if(prevTxHash != null){
+                spent[i] = utxoPool.getTxOutput(new UTXO(prevTxHash, in.outputIndex));
+            }
+        }
+        return spent;
+    }
+
+    /**
+     * @return MALFORMED if the hash of {@code tx} is not its own, BAD_SIGNATURE if the signature of
+     *         an input whose output is known does not match it, null otherwise
+     */
+    private static RejectionCache.Reason checkSignatures(Transaction tx, Transaction.Output[] spent) {
+        //the verified set is keyed by hash, so the hash must be the transaction's own
+        if(!tx.hasValidHash()){
+            return RejectionCache.Reason.MALFORMED;
+        }
+        for(int i = 0; i < spent.length; i++){
+            byte[] signature = tx.getInput(i).signature;
+            if(spent[i] != null && signature != null
+                    && !Crypto.verifySignature(spent[i].address, tx.getRawDataToSign(i), signature)){
+                return RejectionCache.Reason.BAD_SIGNATURE;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return why {@code tx} can never be valid on top of the max height block, or null if it is
+     *         valid or may become valid later
+     */
+    public synchronized RejectionCache.Reason checkTransaction(Transaction tx) {
+        return new TxHandler(utxoPool, Collections.emptySet(), null).getPermanentRejectReason(tx);
+    }
+
+    /** @return the hashes of blocks found invalid so far */
+    public RejectionCache getInvalidBlocks() {
+        return invalidBlocks;
+    }
+
+    /** @return the hashes of transactions found invalid so far */
+    public RejectionCache getInvalidTxs() {
+        return invalidTxs;
+    }
+
+    /** @return the output {@code utxo} points to in the current UTXO pool, or null if it is not in the pool */
+    synchronized Transaction.Output getUTXOOutput(UTXO utxo) {
+        return utxoPool.getTxOutput(utxo);
     }
 
     public String printBlockChain() {
-        BlockNode headBlock = nodesOfBlockChain.get(getMaxHeightBlock().getHash());
-        String activeBlockChain = new String(); 
-        do {
-            activeBlockChain += headBlock.getBlockOfThisNode().getHash();
-            activeBlockChain += "-->";
-            headBlock = this.nodesOfBlockChain.get(headBlock.getBlockOfThisNode().getPrevBlockHash());
-        } while(headBlock.getBlockOfThisNode().getPrevBlockHash() != null);
-        activeBlockChain += "genesis";
-        return(activeBlockChain);
-    }
-
-    public class BlockNode{ //wrap a block with height and date
+        StringBuilder activeBlockChain = new StringBuilder();
+        Iterator<BlockNode> nodes = activeChainIterator();
+        while(nodes.hasNext()) {
+            BlockHeader header = nodes.next().getHeader();
+            if(header.getPrevBlockHash() == null) {
+                break;
+            }
+            activeBlockChain.append(header.getHash()).append("-->");
+        }
+        activeBlockChain.append("genesis");
+        return activeBlockChain.toString();
+    }
+
+    /**
+     * @return a lazy iterator over the active chain as of now, from the tip down to the lowest
+     *         block still in memory
+     */
+    public Iterator<BlockNode> activeChainIterator() {
+        BlockNode tip;
+        synchronized(this) {
+            tip = activeTip;
+        }
+        return new Iterator<BlockNode>() {
+            private BlockNode next = tip;
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public BlockNode next() {
+                if(next == null) {
+                    throw new NoSuchElementException();
+                }
+                BlockNode current = next;
+                next = current.getParent();
+                return current;
+            }
+        };
+    }
+
+    /**
+     * @return the blocks of the active chain from {@code fromHeight} up to {@code toHeight}, both
+     *         inclusive, in height order. Blocks are looked up one at a time while iterating, heights
+     *         above the tip or already pruned from memory are skipped.
+     */
+    public Iterable<Block> blocks(int fromHeight, int toHeight) {
+        BlockNode tip;
+        synchronized(this) {
+            tip = activeTip;
+        }
+        int last = Math.min(toHeight, tip.getHeight());
+        return () -> new Iterator<Block>() {
+            private int height = Math.max(fromHeight, 1);
+            private Block next = advance();
+
+            private Block advance() {
+                while(height <= last) {
+                    BlockNode node = tip.getAncestor(height++);
+                    Block body = node == null ? null : node.getBlockOfThisNode();
+                    if(body != null) {
+                        return body;
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Block next() {
+                if(next == null) {
+                    throw new NoSuchElementException();
+                }
+                Block current = next;
+                next = advance();
+                return current;
+            }
+        };
+    }
+
+    /**
+     * Write the active chain blocks from {@code fromHeight} to {@code toHeight} to {@code channel},
+     * one block at a time, in the given {@code format}.
+     *
+     * @return the number of blocks written
+     */
+    public int exportBlocks(int fromHeight, int toHeight, WritableByteChannel channel,
+                            BlockExporter.Format format) throws IOException {
+        return new BlockExporter(channel, format).writeAll(blocks(fromHeight, toHeight));
+    }
+
+    public class BlockNode{ //wrap a block header with height and date
         //unidirected tree node, each block does not know it's successor
-        private Block blockOfThisNode; //Block
+        private BlockHeader header; //hash, parent hash, Merkle root and proof of work, the body is in the block store
         private String dateOfBlock; //relevant to select a the maxHeightBlock in case multiple blocks have the maxHeight
+        private long arrivalSequence; //order in which the nodes were added, finer than dateOfBlock
         private int height; // height of the block, which is increased incrementally
+        private BlockUndo undo; // UTXO changes of this block, null until the block is validated
+        private boolean hasBody; // the body is in the block store
+        private boolean haveChainBodies; // the bodies of this block and all its ancestors are stored
+        private BlockNode parent; // null for the genesis block and once the parent is pruned
+        private BlockNode skip; // ancestor at getSkipHeight(height), lets getAncestor jump back in O(log n)
 
-        public BlockNode( Block blockOfThisNode, String dateOfBlock, int height){
-            this.blockOfThisNode = blockOfThisNode;
+        public BlockNode( BlockHeader header, String dateOfBlock, int height){
+            this.header = header;
             this.dateOfBlock = dateOfBlock;
+            this.arrivalSequence = arrivalCounter++;
             this.height = height;
         }
 
+        public BlockNode( BlockHeader header, String dateOfBlock, BlockNode parent){
+            this(header, dateOfBlock, parent.getHeight() + 1);
+            this.parent = parent;
+            this.skip = parent.getAncestor(getSkipHeight(height));
+        }
+
+        public BlockHeader getHeader(){
+            return header;
+        }
+
+        public Hash256 getHash(){
+            return header.getHash();
+        }
+
+        /** @return the block, loaded from the block store, or null if its body is not stored */
         public Block getBlockOfThisNode(){
-            return this.blockOfThisNode;
+            return blockStore.get(header.getHash());
         }
 
         public String getDateOfBlock(){
             return this.dateOfBlock;
         }
 
+        public long getArrivalSequence(){
+            return arrivalSequence;
+        }
+
         public int getHeight(){
             return height;
         }
+
+        /** @return estimated bytes retained by this node, its header and its undo record */
+        public long estimatedBytes(){
+            long bytes = NODE_BYTES;
+            if(undo != null){
+                bytes += MemoryEstimator.undo(undo);
+            }
+            return bytes;
+        }
+
+        /** @return true if the block has been validated and connected at least once */
+        public boolean isValidated(){
+            return undo != null;
+        }
+
+        public BlockNode getParent(){
+            return parent;
+        }
+
+        /**
+         * @return the ancestor of this node at {@code targetHeight} (this node itself at its own
+         *         height), or null if there is none or it has been pruned
+         */
+        public BlockNode getAncestor(int targetHeight){
+            if(targetHeight > height || targetHeight < 1){
+                return null;
+            }
+            BlockNode walk = this;
+            int walkHeight = height;
+            while(walk != null && walkHeight > targetHeight){
+                int skipHeight = getSkipHeight(walkHeight);
+                int skipHeightPrev = getSkipHeight(walkHeight - 1);
+                //take the skip pointer unless the parent's skip pointer gets closer to the target
+                if(walk.skip != null && (skipHeight == targetHeight || (skipHeight > targetHeight
+                        && !(skipHeightPrev < skipHeight - 2 && skipHeightPrev >= targetHeight)))){
+                    walk = walk.skip;
+                    walkHeight = skipHeight;
+                }
+                else{
+                    walk = walk.parent;
+                    walkHeight--;
+                }
+            }
+            return walk;
+        }
+
+        private void unlinkBelow(int minHeight){
+            if(parent != null && parent.getHeight() < minHeight){
+                parent = null;
+            }
+            if(skip != null && skip.getHeight() < minHeight){
+                skip = null;
+            }
+        }
+    }
+
+    /**
+     * Height the skip pointer of a node at {@code height} points to, the same scheme as Bitcoin's
+     * {@code pskip} shifted to heights that start at 1 for the genesis block
+     */
+    private static int getSkipHeight(int height) {
+        int index = height - 1;
+        if(index < 2){
+            return 1;
+        }
+        int skipIndex = (index & 1) != 0 ? invertLowestOne(invertLowestOne(index - 1)) + 1 : invertLowestOne(index);
+        return skipIndex + 1;
     }
-}
 
+    private static int invertLowestOne(int n) {
+        return n & (n - 1);
+    }
+}
@@ -0,0 +1,61 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streams blocks to a {@link WritableByteChannel} one at a time, so exporting a chain needs memory
+ * for a single block only.
+ *
+ * <p>
+ * {@link Format#BINARY} writes for every block the length of its hash, the hash, the length of the
+ * encoded block and the encoded block, lengths as big-endian ints. {@link Format#HEX} writes one
+ * line per block with the hex encoded hash and encoded block separated by a space. The encoding
+ * is the one of {@link BlockView#serialize}, the bytes {@link SerializedBlockStore} keeps, so it
+ * holds the coinbase, the difficulty and the nonce, and {@link BlockView#wrap} reads an exported
+ * block back and checks it against its hash.
+ */
+public class BlockExporter {
+
+    public enum Format { BINARY, HEX }
+
+    private final WritableByteChannel channel;
+    private final Format format;
+
+    public BlockExporter(WritableByteChannel channel, Format format) {
+        this.channel = channel;
+        this.format = format;
+    }
+
+    /** write every block of {@code blocks} and return how many were written */
+    public int writeAll(Iterable<Block> blocks) throws IOException {
+        int written = 0;
+        for (Block block : blocks) {
+            write(block);
+            written++;
+        }
+        return written;
+    }
+
+    public void write(Block block) throws IOException {
+        byte[] hash = block.getHash();
+        ByteBuffer encoded = BlockView.serialize(block).duplicate();
+        if (format == Format.BINARY) {
+            ByteBuffer prefix = ByteBuffer.allocate(2 * Integer.BYTES + hash.length);
+            prefix.putInt(hash.length).put(hash).putInt(encoded.remaining());
+            prefix.flip();
+            writeFully(prefix);
+            writeFully(encoded);
+        } else {
+            byte[] bytes = new byte[encoded.remaining()];
+            encoded.get(bytes);
+            String line = Hex.encode(hash) + " " + Hex.encode(bytes) + "\n";
+            writeFully(ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII)));
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+}
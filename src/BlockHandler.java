@@ -1,12 +1,38 @@
 
 import java.security.PublicKey;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
-public class BlockHandler {
+public class BlockHandler implements AutoCloseable {
     private BlockChain blockChain;
+    private BlockPipeline pipeline;
+    private boolean ownsPipeline;
+    private ParallelMiner miner;
+    private int difficulty;
 
-    /** assume blockChain has the genesis block */
+    /** assume blockChain has the genesis block; {@link #close} stops the pipeline created for it */
     public BlockHandler(BlockChain blockChain) {
+        this(blockChain, new BlockPipeline(blockChain));
+        this.ownsPipeline = true;
+    }
+
+    /**
+     * assume blockChain has the genesis block and {@code pipeline} feeds into it; the pipeline may
+     * be shared with other handlers and is left running by {@link #close}
+     */
+    public BlockHandler(BlockChain blockChain, BlockPipeline pipeline) {
         this.blockChain = blockChain;
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * let {@link #createBlock} search a proof of work of {@code difficulty} leading zero bits with
+     * {@code miner}; a null miner creates blocks without proof of work
+     */
+    public void setMiner(ParallelMiner miner, int difficulty) {
+        this.miner = miner;
+        this.difficulty = difficulty;
     }
 
     /**
@@ -17,10 +43,65 @@ public class BlockHandler {
     public boolean processBlock(Block block) {
         if (block == null)
             return false;
-        return blockChain.addBlock(block);
+        return processBlockAsync(block).join();
+    }
+
+    /**
+     * queue {@code block} on the ingest pipeline without waiting for it to be connected, so that
+     * the verification of several blocks can overlap
+     *
+     * @return a future completed with the result {@link #processBlock} would have returned
+     */
+    public CompletableFuture<Boolean> processBlockAsync(Block block) {
+        if (block == null)
+            return CompletableFuture.completedFuture(false);
+        return pipeline.submit(block);
+    }
+
+    /**
+     * add the block announced by {@code compact}, rebuilt from the transaction pool. Transactions
+     * the pool does not have are fetched with {@code fetchMissing}, which gets their positions in
+     * the block (0 is the coinbase) and returns the transactions at them, e.g. through
+     * {@link CompactBlock#transactionsAt} on the sending node. If the rebuilt block does not match
+     * the announced hash, all transactions are fetched.
+     *
+     * @return the result {@link #processBlock} gives for the rebuilt block, false if it could not
+     *         be rebuilt
+     */
+    public boolean processCompactBlock(CompactBlock compact, Function<int[], List<Transaction>> fetchMissing) {
+        if (compact == null || blockChain.getInvalidBlocks().lookup(compact.getHash()) != null)
+            return false;
+        Transaction[] slots = compact.match(blockChain.getTransactionPool());
+        int[] missing = CompactBlock.missing(slots);
+        if (missing.length > 0)
+            fill(slots, missing, fetchMissing.apply(missing));
+        Block block = compact.assemble(slots);
+        if (block == null) {
+            //a short id matched the wrong transaction, fall back to the full block
+            int[] all = new int[compact.size()];
+            for (int i = 0; i < all.length; i++)
+                all[i] = i;
+            slots = new Transaction[compact.size()];
+            fill(slots, all, fetchMissing.apply(all));
+            block = compact.assemble(slots);
+        }
+        return block != null && processBlock(block);
+    }
+
+    private static void fill(Transaction[] slots, int[] positions, List<Transaction> txs) {
+        if (txs == null)
+            return;
+        for (int i = 0; i < positions.length && i < txs.size(); i++)
+            slots[positions[i]] = txs.get(i);
     }
 
-    /** create a new {@code block} over the max height {@code block} */
+    /**
+     * create a new {@code block} over the max height {@code block}. With a miner set, the block is
+     * only added once its proof of work is found, and mining is aborted once another block
+     * becomes the max height block.
+     *
+     * @return the new block, or null if it was not added or mining was aborted
+     */
     public Block createBlock(PublicKey myAddress) {
         Block parent = blockChain.getMaxHeightBlock();
         byte[] parentHash = parent.getHash();
@@ -33,15 +114,42 @@ public class BlockHandler {
         for (int i = 0; i < rTxs.length; i++)
             current.addTransaction(rTxs[i]);
 
-        current.finalize();
-        if (blockChain.addBlock(current))
+        if (miner != null) {
+            //stop once any block moves the tip, whichever way it reached the chain
+            Hash256 parentHash256 = parent.getHash256();
+            if (!miner.mine(current, difficulty, () -> !parentHash256.equals(blockChain.getMaxHeightHash256())))
+                return null;
+        } else {
+            current.finalize();
+        }
+        if (processBlock(current))
             return current;
         else
             return null;
     }
 
-    /** process a {@code Transaction} */
+    /** stop the pipeline this handler created, blocks processed afterwards are rejected */
+    public void close() {
+        if (ownsPipeline)
+            pipeline.close();
+    }
+
+    /**
+     * process a {@code Transaction}. Transactions that can never be valid are remembered and not
+     * validated again when resubmitted.
+     */
     public void processTx(Transaction tx) {
+        //a claimed hash is neither remembered nor used as a key
+        if (tx == null || !tx.hasValidHash())
+            return;
+        RejectionCache invalidTxs = blockChain.getInvalidTxs();
+        if (invalidTxs.lookup(tx.getHash256()) != null || blockChain.containsTransaction(tx.getHash256()))
+            return;
+        RejectionCache.Reason reason = blockChain.checkTransaction(tx);
+        if (reason != null) {
+            invalidTxs.reject(tx.getHash256(), reason);
+            return;
+        }
         blockChain.addTransaction(tx);
     }
 }
@@ -0,0 +1,134 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The part of a block the block tree needs: its parent's hash, the Merkle root of its transactions,
+ * its difficulty and nonce, and the hash over these. A few dozen bytes no matter how many
+ * transactions the block holds. The hash is always computed from the other fields, so a header
+ * cannot claim the hash of another block.
+ */
+public final class BlockHeader {
+
+    private final Hash256 hash;
+    private final Hash256 prevBlockHash;
+    private final Hash256 merkleRoot;
+    private final int difficulty;
+    private final long nonce;
+
+    /** {@code prevBlockHash} is null for the genesis block */
+    public BlockHeader(Hash256 prevBlockHash, Hash256 merkleRoot, int difficulty, long nonce) {
+        if (merkleRoot == null)
+            throw new IllegalArgumentException("header needs a Merkle root");
+        if (difficulty < 0 || difficulty > 8 * Hash256.BYTES)
+            throw new IllegalArgumentException("difficulty out of range: " + difficulty);
+        this.prevBlockHash = prevBlockHash;
+        this.merkleRoot = merkleRoot;
+        this.difficulty = difficulty;
+        this.nonce = nonce;
+        Hash256 h = null;
+        try {
+            MessageDigest md = midstate(prevBlockHash, merkleRoot, difficulty);
+            md.update(ByteBuffer.allocate(Long.BYTES).putLong(nonce).array());
+            h = Hash256.of(md.digest());
+        } catch (NoSuchAlgorithmException x) {
+            x.printStackTrace(System.err);
+        }
+        this.hash = h;
+    }
+
+    /**
+     * @return the header of {@code block}, computed from its contents, or null if it has no
+     *         coinbase or a transaction without a hash
+     */
+    public static BlockHeader of(Block block) {
+        Hash256 root = merkleRoot(block);
+        if (root == null)
+            return null;
+        return new BlockHeader(block.getPrevBlockHash256(), root, block.getDifficulty(), block.getNonce());
+    }
+
+    /**
+     * @return a digest that has consumed everything the block hash covers except the nonce: the
+     *         parent's hash (nothing for the genesis block), the Merkle root and the difficulty
+     */
+    static MessageDigest midstate(Hash256 prevBlockHash, Hash256 merkleRoot, int difficulty)
+            throws NoSuchAlgorithmException {
+        MessageDigest md = MessageDigest.getInstance("SHA-256");
+        ByteBuffer fields = ByteBuffer.allocate(2 * Hash256.BYTES + Integer.BYTES);
+        if (prevBlockHash != null)
+            prevBlockHash.write(fields);
+        merkleRoot.write(fields);
+        fields.putInt(difficulty);
+        md.update(fields.array(), 0, fields.position());
+        return md;
+    }
+
+    public Hash256 getHash() {
+        return hash;
+    }
+
+    /** @return the hash of the parent block, null for the genesis block */
+    public Hash256 getPrevBlockHash() {
+        return prevBlockHash;
+    }
+
+    public Hash256 getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public int getDifficulty() {
+        return difficulty;
+    }
+
+    public long getNonce() {
+        return nonce;
+    }
+
+    /** @return true if the hash has at least as many leading zero bits as the difficulty asks for */
+    public boolean hasValidProofOfWork() {
+        return hash != null && Block.hasLeadingZeroBits(hash.toByteArray(), difficulty);
+    }
+
+    /**
+     * @return the root of the binary SHA-256 tree over the hashes of the coinbase and the other
+     *         transactions of {@code block}, an odd node at the end of a level is paired with itself;
+     *         null if the block has no coinbase or a transaction has no hash
+     */
+    public static Hash256 merkleRoot(Block block) {
+        if (block.getCoinbase() == null || block.getCoinbase().getHash256() == null)
+            return null;
+        List<Hash256> leaves = new ArrayList<>();
+        leaves.add(block.getCoinbase().getHash256());
+        for (Transaction tx : block.getTransactions()) {
+            if (tx == null || tx.getHash256() == null)
+                return null;
+            leaves.add(tx.getHash256());
+        }
+        return merkleRoot(leaves);
+    }
+
+    /** @return the root of the tree over {@code leaves}, coinbase hash first, as in {@link #merkleRoot(Block)} */
+    static Hash256 merkleRoot(List<Hash256> leaves) {
+        List<Hash256> level = leaves;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            ByteBuffer pair = ByteBuffer.allocate(2 * Hash256.BYTES);
+            while (level.size() > 1) {
+                List<Hash256> next = new ArrayList<>((level.size() + 1) / 2);
+                for (int i = 0; i < level.size(); i += 2) {
+                    pair.clear();
+                    level.get(i).write(pair);
+                    level.get(Math.min(i + 1, level.size() - 1)).write(pair);
+                    next.add(Hash256.of(md.digest(pair.array())));
+                }
+                level = next;
+            }
+        } catch (NoSuchAlgorithmException x) {
+            x.printStackTrace(System.err);
+        }
+        return level.get(0);
+    }
+}
@@ -0,0 +1,297 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Staged ingest pipeline in front of {@link BlockChain}. A submitted block goes through
+ * (1) decode/hash, which recomputes every hash the block carries, and (2) context-free checks on
+ * the caller's thread, (3) signature verification on a pool of worker threads, (4) UTXO connect
+ * on a single thread in submission order, and (5) persistence on a background thread. The queues between the stages are bounded, so
+ * {@link #submit} blocks the caller once too many blocks are in flight.
+ */
+public class BlockPipeline implements AutoCloseable {
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private final BlockChain blockChain;
+    private final Consumer<Block> persister;
+    private final ExecutorService verifiers;
+    private final BlockingQueue<Job> connectQueue;
+    private final BlockingQueue<Block> persistQueue;
+    private final List<Thread> stageThreads = new ArrayList<>();
+    private volatile boolean closed;
+
+    /** create a pipeline over {@code blockChain} that does not persist connected blocks */
+    public BlockPipeline(BlockChain blockChain) {
+        this(blockChain, null, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * create a pipeline over {@code blockChain}; every connected block is handed to
+     * {@code persister} (may be null) off the connect thread
+     */
+    public BlockPipeline(BlockChain blockChain, Consumer<Block> persister, int verifierThreads,
+                         int queueCapacity) {
+        this.blockChain = blockChain;
+        this.persister = persister;
+        this.verifiers = Executors.newFixedThreadPool(verifierThreads, runnable -> {
+            Thread thread = new Thread(runnable, "block-verifier");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.connectQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.persistQueue = new ArrayBlockingQueue<>(queueCapacity);
+        stageThreads.add(startDaemon("block-connect", this::connectLoop));
+        if (persister != null) {
+            stageThreads.add(startDaemon("block-persist", this::persistLoop));
+        }
+    }
+
+    /**
+     * Feed {@code block} into the pipeline. Blocks the caller while the connect queue is full.
+     *
+     * @return a future completed with true once the block is connected, or false if it is rejected
+     */
+    public CompletableFuture<Boolean> submit(Block block) {
+        Job job = new Job(block);
+        if (closed || !decode(block) || blockChain.getInvalidBlocks().lookup(block.getHash256()) != null) {
+            job.result.complete(false);
+            return job.result;
+        }
+        RejectionCache.Reason malformed = checkContextFree(block);
+        if (malformed != null) {
+            blockChain.rejectBlock(block.getHash256(), malformed);
+            job.result.complete(false);
+            return job.result;
+        }
+        try {
+            connectQueue.put(job); //reserve the connect slot first so apply order is submission order
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            job.result.complete(false);
+            return job.result;
+        }
+        if (closed) {
+            failQueued(); //close() may have drained the queue before the put
+            return job.result;
+        }
+        try {
+            verifySignatures(job);
+        } catch (RuntimeException e) {
+            job.verified.completeExceptionally(e); //e.g. closed meanwhile, the connect stage gives up on it
+        }
+        return job.result;
+    }
+
+    /**
+     * stop accepting blocks and stop all threads of the pipeline. Blocks waiting to be connected
+     * complete with false; connected blocks waiting to be persisted are still persisted.
+     */
+    public void close() {
+        closed = true;
+        verifiers.shutdown();
+        for (Thread thread : stageThreads)
+            thread.interrupt();
+        failQueued();
+    }
+
+    // complete every job still waiting to be connected with false
+    private void failQueued() {
+        List<Job> left = new ArrayList<>();
+        connectQueue.drainTo(left);
+        for (Job job : left)
+            job.result.complete(false);
+    }
+
+    // stage 1: make sure the block and all of its transactions carry the hashes of their own contents,
+    // anything wrong here is not covered by the block hash and so never remembered as invalid
+    private boolean decode(Block block) {
+        if (block == null || block.getCoinbase() == null || !block.getCoinbase().isCoinbase())
+            return false;
+        if (!hasValidHash(block.getCoinbase()))
+            return false;
+        for (Transaction tx : block.getTransactions()) {
+            if (!hasValidHash(tx))
+                return false;
+        }
+        if (block.getHash256() == null)
+            block.finalize();
+        BlockHeader header = BlockHeader.of(block);
+        return header != null && header.getHash().equals(block.getHash256());
+    }
+
+    private static boolean hasValidHash(Transaction tx) {
+        if (tx == null)
+            return false;
+        if (tx.getHash() == null)
+            tx.finalize();
+        return tx.hasValidHash();
+    }
+
+    // stage 2: checks that need nothing but the block itself, returns null if they pass
+    private RejectionCache.Reason checkContextFree(Block block) {
+        // the genesis block is the only one that does not have a previous hash
+        if (block.getPrevBlockHash256() == null)
+            return RejectionCache.Reason.MALFORMED;
+        for (Transaction tx : block.getTransactions()) {
+            Set<UTXO> claimed = new HashSet<>();
+            for (Transaction.Input in : tx.getInputs()) {
+                Hash256 prevTxHash = Hash256.tryOf(in.prevTxHash);
+                if (prevTxHash == null)
+                    return RejectionCache.Reason.MALFORMED;
+                if (!claimed.add(new UTXO(prevTxHash, in.outputIndex)))
+                    return RejectionCache.Reason.DOUBLE_SPEND;
+            }
+            for (Transaction.Output op : tx.getOutputs()) {
+                if (op.value < 0)
+                    return RejectionCache.Reason.NEGATIVE_OUTPUT;
+            }
+        }
+        return null;
+    }
+
+    // stage 3: check the signatures of all transactions in parallel
+    private void verifySignatures(Job job) {
+        if (blockChain.isAssumedValid(job.block.getHash256())) {
+            // below the checkpoint, the chain applies the block without looking at signatures
+            job.verified.complete(new HashSet<>());
+            return;
+        }
+        List<Transaction> txs = job.block.getTransactions();
+        // outputs created inside the block, which the chain does not know about yet
+        HashMap<UTXO, Transaction.Output> blockOutputs = new HashMap<>();
+        for (Transaction tx : txs) {
+            for (int i = 0; i < tx.numOutputs(); i++)
+                blockOutputs.put(new UTXO(tx.getHash256(), i), tx.getOutput(i));
+        }
+
+        List<CompletableFuture<Verdict>> verdicts = new ArrayList<>();
+        for (Transaction tx : txs) {
+            verdicts.add(CompletableFuture.supplyAsync(() -> verifyTx(tx, blockOutputs), verifiers));
+        }
+        CompletableFuture.allOf(verdicts.toArray(new CompletableFuture<?>[0])).whenComplete((ignored, error) -> {
+            if (error != null) {
+                job.verified.completeExceptionally(error);
+                return;
+            }
+            Set<Hash256> verifiedTxs = new HashSet<>();
+            for (int i = 0; i < txs.size(); i++) {
+                Verdict verdict = verdicts.get(i).join();
+                if (verdict == Verdict.INVALID) {
+                    job.verified.complete(null);
+                    return;
+                }
+                if (verdict == Verdict.VERIFIED)
+                    verifiedTxs.add(txs.get(i).getHash256());
+            }
+            job.verified.complete(verifiedTxs);
+        });
+    }
+
+    private Verdict verifyTx(Transaction tx, HashMap<UTXO, Transaction.Output> blockOutputs) {
+        Verdict verdict = Verdict.VERIFIED;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input in = tx.getInput(i);
+            Hash256 prevTxHash = Hash256.tryOf(in.prevTxHash);
+            if (prevTxHash == null)
+                return Verdict.INVALID;
+            UTXO utxo = new UTXO(prevTxHash, in.outputIndex);
+            Transaction.Output spent = blockOutputs.get(utxo);
+            if (spent == null)
+                spent = blockChain.getUTXOOutput(utxo);
+            if (spent == null) {
+                // parent not connected yet, the connect stage will check this input itself
+                verdict = Verdict.UNKNOWN;
+                continue;
+            }
+            if (in.signature != null && !Crypto.verifySignature(spent.address, tx.getRawDataToSign(i), in.signature))
+                return Verdict.INVALID;
+        }
+        return verdict;
+    }
+
+    // stage 4: apply blocks to the chain one at a time, in submission order
+    private void connectLoop() {
+        while (true) {
+            Job job;
+            try {
+                job = connectQueue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (closed) {
+                job.result.complete(false);
+                continue;
+            }
+            boolean connected = false;
+            try {
+                Set<Hash256> verifiedTxs = job.verified.join();
+                if (verifiedTxs == null)
+                    blockChain.rejectBlock(job.block.getHash256(), RejectionCache.Reason.BAD_SIGNATURE);
+                else
+                    connected = blockChain.addBlock(job.block, verifiedTxs);
+            } catch (RuntimeException e) {
+                e.printStackTrace(System.err);
+            }
+            job.result.complete(connected);
+            if (connected && persister != null) {
+                try {
+                    persistQueue.put(job.block);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // stage 5: hand connected blocks to the persister without holding up the connect stage
+    private void persistLoop() {
+        while (true) {
+            Block block;
+            try {
+                block = persistQueue.take();
+            } catch (InterruptedException e) {
+                // closed, hand over what was connected before stopping
+                for (block = persistQueue.poll(); block != null; block = persistQueue.poll())
+                    persist(block);
+                return;
+            }
+            persist(block);
+        }
+    }
+
+    private void persist(Block block) {
+        try {
+            persister.accept(block);
+        } catch (RuntimeException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    private static Thread startDaemon(String name, Runnable loop) {
+        Thread thread = new Thread(loop, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private enum Verdict { VERIFIED, UNKNOWN, INVALID }
+
+    private static class Job {
+        private final Block block;
+        // hashes of the transactions whose signatures are all checked, null if the block is invalid
+        private final CompletableFuture<Set<Hash256>> verified = new CompletableFuture<>();
+        private final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        private Job(Block block) {
+            this.block = block;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+
+/**
+ * Keeps block bodies apart from the block tree, which only holds {@link BlockHeader}s. Bodies are
+ * loaded when a block is validated or its transactions are needed. Implementations must be
+ * thread-safe.
+ */
+public interface BlockStore {
+
+    void put(Block block);
+
+    /** @return the block with hash {@code hash}, or null if the store does not have it */
+    Block get(Hash256 hash);
+
+    void remove(Hash256 hash);
+
+    /** @return the estimated number of bytes the stored bodies retain */
+    long getEstimatedBytes();
+}
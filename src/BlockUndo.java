@@ -0,0 +1,52 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Compact record of what connecting one block did to the UTXO pool: the outputs it spent that
+ * existed before the block, and the outputs it created that are still unspent after it. Outputs
+ * created and spent inside the same block cancel out and are not kept.
+ *
+ * <p>
+ * The record works in both directions, so a chain reorganization can roll the pool back to a fork
+ * point and forward along another branch without validating any block a second time.
+ */
+public class BlockUndo {
+
+    private LinkedHashMap<UTXO, Transaction.Output> spent = new LinkedHashMap<>();
+    private LinkedHashMap<UTXO, Transaction.Output> created = new LinkedHashMap<>();
+
+    /** record that {@code utxo} holding {@code txOut} was removed from the pool */
+    public void spend(UTXO utxo, Transaction.Output txOut) {
+        if (created.remove(utxo) == null)
+            spent.put(utxo, txOut);
+    }
+
+    /** record that {@code utxo} holding {@code txOut} was added to the pool */
+    public void create(UTXO utxo, Transaction.Output txOut) {
+        created.put(utxo, txOut);
+    }
+
+    /** apply the block's changes to {@code pool}, which must be in the state before the block */
+    public void applyTo(UTXOPool pool) {
+        for (UTXO utxo : spent.keySet())
+            pool.removeUTXO(utxo);
+        for (Map.Entry<UTXO, Transaction.Output> entry : created.entrySet())
+            pool.addUTXO(entry.getKey(), entry.getValue());
+    }
+
+    /** revert the block's changes on {@code pool}, which must be in the state after the block */
+    public void undoFrom(UTXOPool pool) {
+        for (UTXO utxo : created.keySet())
+            pool.removeUTXO(utxo);
+        for (Map.Entry<UTXO, Transaction.Output> entry : spent.entrySet())
+            pool.addUTXO(entry.getKey(), entry.getValue());
+    }
+
+    public int numSpent() {
+        return spent.size();
+    }
+
+    public int numCreated() {
+        return created.size();
+    }
+}
@@ -0,0 +1,192 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Read-only {@link Block} over its serialized form. Wrapping a buffer reads the header and the
+ * transaction hashes only, and checks the block hash against them. A transaction is materialized
+ * as a {@link TransactionView} when it is first asked for, once per view, and its inputs and
+ * outputs are decoded only when they are read, so replaying stored blocks or reading a single
+ * transaction of a historic block allocates little more than what is actually used.
+ *
+ * <p>
+ * Layout, all numbers big-endian: the 32 byte block hash, a flag byte followed by the 32 byte
+ * parent hash if the flag is 1, the difficulty as an int, the nonce as a long, the number of
+ * transactions after the coinbase, one int offset per transaction (coinbase first) pointing to its
+ * record in the buffer, and the transaction records as described in {@link TransactionView}.
+ */
+public final class BlockView extends Block {
+
+    private final ByteBuffer buffer;
+    private final int numTransactions;
+    private final int offsetTable;
+    private volatile TransactionView coinbase;
+    private volatile ArrayList<Transaction> txs;
+    /** the view of each transaction after the coinbase, so its decoded fields are kept */
+    private final AtomicReferenceArray<TransactionView> views;
+
+    private BlockView(ByteBuffer buffer, Hash256 hash, Hash256 prevBlockHash, int difficulty, long nonce,
+                      int numTransactions, int offsetTable) {
+        super(hash, prevBlockHash, difficulty, nonce);
+        this.buffer = buffer;
+        this.numTransactions = numTransactions;
+        this.offsetTable = offsetTable;
+        this.views = new AtomicReferenceArray<>(numTransactions);
+    }
+
+    /**
+     * @return a view over the block serialized in the remaining bytes of {@code buffer}, which
+     *         must not be modified while the view is in use. The position of {@code buffer} is not
+     *         changed.
+     * @throws IllegalArgumentException if the block is truncated or does not match its hash
+     */
+    public static BlockView wrap(ByteBuffer buffer) {
+        ByteBuffer data = buffer.slice().asReadOnlyBuffer();
+        try {
+            Hash256 hash = Hash256.read(data, 0);
+            int pos = Hash256.BYTES;
+            Hash256 prevBlockHash = null;
+            if (data.get(pos++) == 1) {
+                prevBlockHash = Hash256.read(data, pos);
+                pos += Hash256.BYTES;
+            }
+            int difficulty = data.getInt(pos);
+            pos += Integer.BYTES;
+            long nonce = data.getLong(pos);
+            pos += Long.BYTES;
+            int numTransactions = data.getInt(pos);
+            pos += Integer.BYTES;
+            if (numTransactions < 0 || pos + (numTransactions + 1L) * Integer.BYTES > data.limit())
+                throw new IllegalArgumentException("bad transaction count " + numTransactions);
+            BlockView view = new BlockView(data, hash, prevBlockHash, difficulty, nonce, numTransactions, pos);
+            List<Hash256> txHashes = new ArrayList<>(numTransactions + 1);
+            for (int i = 0; i <= numTransactions; i++)
+                txHashes.add(Hash256.read(data, view.offsetOf(i)));
+            BlockHeader header = new BlockHeader(prevBlockHash, BlockHeader.merkleRoot(txHashes), difficulty, nonce);
+            if (!header.getHash().equals(hash))
+                throw new IllegalArgumentException("block does not match its hash");
+            return view;
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("truncated block header", e);
+        }
+    }
+
+    /** @return {@code block}, which must be finalized, in the layout {@link #wrap} reads */
+    public static ByteBuffer serialize(Block block) {
+        if (block.getHash256() == null)
+            throw new IllegalArgumentException("block is not finalized");
+        if (block instanceof BlockView)
+            return ((BlockView) block).getBuffer();
+        ArrayList<Transaction> txs = block.getTransactions();
+        int headerSize = Hash256.BYTES + 1 + (block.getPrevBlockHash256() == null ? 0 : Hash256.BYTES)
+                + Integer.BYTES + Long.BYTES + Integer.BYTES + (txs.size() + 1) * Integer.BYTES;
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(records);
+        int[] offsets = new int[txs.size() + 1];
+        try {
+            offsets[0] = headerSize;
+            TransactionView.write(block.getCoinbase(), out, headerSize);
+            for (int i = 0; i < txs.size(); i++) {
+                offsets[i + 1] = headerSize + out.size();
+                TransactionView.write(txs.get(i), out, offsets[i + 1]);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); //in memory, cannot happen
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(headerSize + out.size());
+        block.getHash256().write(buffer);
+        if (block.getPrevBlockHash256() == null) {
+            buffer.put((byte) 0);
+        } else {
+            buffer.put((byte) 1);
+            block.getPrevBlockHash256().write(buffer);
+        }
+        buffer.putInt(block.getDifficulty()).putLong(block.getNonce());
+        buffer.putInt(txs.size());
+        for (int offset : offsets)
+            buffer.putInt(offset);
+        buffer.put(records.toByteArray());
+        buffer.flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    /** @return a read-only buffer over the serialized block, positioned at its start */
+    public ByteBuffer getBuffer() {
+        return buffer.duplicate();
+    }
+
+    /** @return the number of transactions after the coinbase, without decoding any of them */
+    public int numTransactions() {
+        return numTransactions;
+    }
+
+    /** @return the hash of transaction {@code index}, read straight from the buffer */
+    public Hash256 getTransactionHash256(int index) {
+        return Hash256.read(buffer, offsetOf(index + 1));
+    }
+
+    public Transaction getCoinbase() {
+        TransactionView cb = coinbase;
+        if (cb == null) {
+            cb = new TransactionView(buffer, offsetOf(0));
+            coinbase = cb;
+        }
+        return cb;
+    }
+
+    public ArrayList<Transaction> getTransactions() {
+        ArrayList<Transaction> all = txs;
+        if (all == null) {
+            all = new ArrayList<Transaction>(numTransactions);
+            for (int i = 0; i < numTransactions; i++)
+                all.add(view(i));
+            txs = all;
+        }
+        return all;
+    }
+
+    public Transaction getTransaction(int index) {
+        ArrayList<Transaction> all = txs;
+        if (all != null)
+            return all.get(index);
+        if (index < 0 || index >= numTransactions)
+            throw new IndexOutOfBoundsException("transaction " + index + " of " + numTransactions);
+        return view(index);
+    }
+
+    /** @return the view of transaction {@code index}, the same one on every call */
+    private TransactionView view(int index) {
+        TransactionView view = views.get(index);
+        if (view == null) {
+            views.compareAndSet(index, null, new TransactionView(buffer, offsetOf(index + 1)));
+            view = views.get(index);
+        }
+        return view;
+    }
+
+    public void addTransaction(Transaction tx) {
+        throw new UnsupportedOperationException("block view is read-only");
+    }
+
+    public void setDifficulty(int difficulty) {
+        throw new UnsupportedOperationException("block view is read-only");
+    }
+
+    public void setNonce(long nonce) {
+        throw new UnsupportedOperationException("block view is read-only");
+    }
+
+    /** the hash is part of the serialized block, there is nothing to compute */
+    public void finalize() {
+    }
+
+    private int offsetOf(int txIndex) {
+        return buffer.getInt(offsetTable + txIndex * Integer.BYTES);
+    }
+}
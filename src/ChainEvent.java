@@ -0,0 +1,58 @@
+/**
+ * One notification of {@link ChainEventBus}. The bus reuses its event objects, so a handler must
+ * copy what it wants to keep before returning from {@link ChainEventHandler#onEvent}.
+ */
+public final class ChainEvent {
+
+    public enum Type {
+        /** the active chain ends in a new block; {@code block} and {@code height} are the new tip */
+        TIP_CHANGED,
+        /** {@code block} at {@code height} became part of the active chain */
+        BLOCK_CONNECTED,
+        /** {@code block} at {@code height} left the active chain in a reorganization */
+        BLOCK_DISCONNECTED,
+        /** {@code tx} entered the transaction pool */
+        TX_ACCEPTED,
+        /** {@code tx} was dropped from the transaction pool without being confirmed */
+        TX_EVICTED,
+        /** {@code tx} left the transaction pool because a block of the active chain contains it */
+        TX_CONFIRMED
+    }
+
+    private Type type;
+    private Block block;
+    private int height;
+    private Transaction tx;
+
+    void set(Type type, Block block, int height, Transaction tx) {
+        this.type = type;
+        this.block = block;
+        this.height = height;
+        this.tx = tx;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /** @return the block of a block or tip event, null for transaction events */
+    public Block getBlock() {
+        return block;
+    }
+
+    /** @return the height of a block or tip event, 0 for transaction events */
+    public int getHeight() {
+        return height;
+    }
+
+    /** @return the transaction of a transaction event, null for block events */
+    public Transaction getTransaction() {
+        return tx;
+    }
+
+    public String toString() {
+        if (tx != null)
+            return type + " " + tx.getHash256();
+        return type + " " + height + " " + (block == null ? null : block.getHash256());
+    }
+}
@@ -0,0 +1,174 @@
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Ring buffer of pre-allocated {@link ChainEvent}s between the chain and its subscribers, in the
+ * style of the LMAX Disruptor. Publishers claim a slot with a CAS on the cursor, fill the event
+ * in place and mark the slot as published; nothing is allocated and no subscriber is woken up.
+ * Every subscription runs its handler on its own thread, which polls for published slots and hands
+ * over everything available as one batch.
+ *
+ * <p>
+ * A slot is reused only after every subscription has consumed it. What happens when the slowest
+ * subscription is a whole ring behind is decided by the {@link OverflowPolicy}. Publishing with no
+ * subscriptions costs one volatile read.
+ */
+public class ChainEventBus {
+
+    public enum OverflowPolicy {
+        /** drop the new event and count it, the publisher never waits */
+        DROP,
+        /** wait until the slowest subscription frees a slot, for handlers that must see every event */
+        BLOCK
+    }
+
+    // how long an idle subscription sleeps between polls
+    private static final long IDLE_PARK_NANOS = 50_000;
+    private static final int SPINS_BEFORE_PARK = 100;
+
+    private final ChainEvent[] events;
+    // sequence published into each slot, -1 while the slot was never published
+    private final AtomicLong[] published;
+    private final int mask;
+    private final OverflowPolicy policy;
+    // next sequence to claim
+    private final AtomicLong cursor = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /** @param capacity number of slots, rounded up to a power of two */
+    public ChainEventBus(int capacity, OverflowPolicy policy) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.events = new ChainEvent[size];
+        this.published = new AtomicLong[size];
+        for (int i = 0; i < size; i++) {
+            events[i] = new ChainEvent();
+            published[i] = new AtomicLong(-1);
+        }
+        this.mask = size - 1;
+        this.policy = policy;
+    }
+
+    /** @return true if anybody is listening, so publishers can skip preparing an event */
+    public boolean hasSubscribers() {
+        return !subscriptions.isEmpty();
+    }
+
+    public void publishBlock(ChainEvent.Type type, Block block, int height) {
+        publish(type, block, height, null);
+    }
+
+    public void publishTransaction(ChainEvent.Type type, Transaction tx) {
+        publish(type, null, 0, tx);
+    }
+
+    private void publish(ChainEvent.Type type, Block block, int height, Transaction tx) {
+        if (subscriptions.isEmpty())
+            return;
+        long seq;
+        while (true) {
+            seq = cursor.get();
+            if (seq - slowestSequence() >= events.length) {
+                if (policy == OverflowPolicy.DROP) {
+                    dropped.incrementAndGet();
+                    return;
+                }
+                Thread.onSpinWait();
+                continue;
+            }
+            if (cursor.compareAndSet(seq, seq + 1))
+                break;
+        }
+        int slot = (int) seq & mask;
+        events[slot].set(type, block, height, tx);
+        published[slot].set(seq);
+    }
+
+    // lowest sequence not yet consumed by every subscription, the cursor if there are none
+    private long slowestSequence() {
+        long min = cursor.get();
+        for (Subscription subscription : subscriptions)
+            min = Math.min(min, subscription.next);
+        return min;
+    }
+
+    /**
+     * Start delivering events published from now on to {@code handler} on a daemon thread named
+     * {@code name}.
+     */
+    public Subscription subscribe(String name, ChainEventHandler handler) {
+        Subscription subscription = new Subscription(handler);
+        //gate the publishers on a sequence from before the subscription is visible to them, then
+        //move to the first sequence nobody can have claimed yet
+        subscription.next = cursor.get();
+        subscriptions.add(subscription);
+        subscription.next = cursor.get();
+        Thread thread = new Thread(subscription::run, name);
+        thread.setDaemon(true);
+        thread.start();
+        return subscription;
+    }
+
+    /** @return number of events dropped because the ring was full */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /** @return number of events published so far */
+    public long getPublished() {
+        return cursor.get();
+    }
+
+    public int capacity() {
+        return events.length;
+    }
+
+    public class Subscription {
+        private final ChainEventHandler handler;
+        // next sequence to consume, everything below it may be overwritten
+        private volatile long next;
+        private volatile boolean closed;
+
+        private Subscription(ChainEventHandler handler) {
+            this.handler = handler;
+        }
+
+        /** @return how many published events this subscription has not consumed yet */
+        public long lag() {
+            return Math.max(0, cursor.get() - next);
+        }
+
+        /** stop delivering events; the handler sees no event after the current batch */
+        public void close() {
+            closed = true;
+            subscriptions.remove(this);
+        }
+
+        private void run() {
+            int idle = 0;
+            while (!closed) {
+                long first = next;
+                long available = first;
+                while (published[(int) available & mask].get() == available)
+                    available++;
+                if (available == first) {
+                    if (++idle < SPINS_BEFORE_PARK)
+                        Thread.onSpinWait();
+                    else
+                        LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+                idle = 0;
+                for (long seq = first; seq < available; seq++) {
+                    try {
+                        handler.onEvent(events[(int) seq & mask], seq, seq == available - 1);
+                    } catch (RuntimeException e) {
+                        e.printStackTrace(System.err);
+                    }
+                }
+                next = available; //release the whole batch to the publishers at once
+            }
+        }
+    }
+}
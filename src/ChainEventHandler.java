@@ -0,0 +1,10 @@
+/** Receives the events of a {@link ChainEventBus} subscription on the subscription's own thread */
+public interface ChainEventHandler {
+
+    /**
+     * @param event      valid only until this call returns
+     * @param sequence   position of the event on the bus
+     * @param endOfBatch true for the last event currently available, a good point to flush
+     */
+    void onEvent(ChainEvent event, long sequence, boolean endOfBatch);
+}
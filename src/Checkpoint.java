@@ -0,0 +1,29 @@
+/**
+ * A block known to be part of the valid chain, identified by its height and hash. Blocks leading
+ * up to it can be imported without checking their signatures, and no other block is accepted at
+ * its height.
+ */
+public final class Checkpoint {
+
+    private final int height;
+    private final Hash256 hash;
+
+    public Checkpoint(int height, Hash256 hash) {
+        if (hash == null)
+            throw new IllegalArgumentException("checkpoint needs a block hash");
+        this.height = height;
+        this.hash = hash;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Hash256 getHash() {
+        return hash;
+    }
+
+    public String toString() {
+        return height + ":" + hash;
+    }
+}
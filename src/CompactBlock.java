@@ -0,0 +1,282 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Announcement of a block that refers to most of its transactions by a 6 byte short id instead of
+ * repeating them, on the assumption that the receiver already has them in its
+ * {@link TransactionPool}. The coinbase and the transactions the sender expects the receiver to
+ * be missing are included in full ("prefilled").
+ *
+ * <p>
+ * The receiver matches the short ids against its pool ({@link #match}), fetches whatever is still
+ * missing from the sender ({@link #transactionsAt} on the sending side) and assembles the block
+ * ({@link #assemble}), which recomputes the block hash and so catches short id collisions.
+ * Transaction hashes are recomputed as well, as they key the outputs a transaction creates.
+ * Positions are block positions: 0 is the coinbase, {@code i} is transaction {@code i - 1}.
+ *
+ * <p>
+ * Short ids are keyed with the block hash and a random salt, so nobody can craft transactions
+ * whose short ids collide in every block.
+ */
+public class CompactBlock {
+
+    /** bytes per short id */
+    public static final int SHORT_ID_BYTES = 6;
+    private static final long SHORT_ID_MASK = (1L << (8 * SHORT_ID_BYTES)) - 1;
+    private static final SecureRandom SALTS = new SecureRandom();
+
+    private final Hash256 hash;
+    private final Hash256 prevBlockHash;
+    private final int difficulty;
+    private final long nonce;
+    private final long salt;
+    // number of positions, the coinbase included
+    private final int size;
+    // positions of the prefilled transactions in ascending order, always starting with 0
+    private final int[] prefilledPositions;
+    private final Transaction[] prefilled;
+    // short ids of the remaining positions in ascending order
+    private final long[] shortIds;
+
+    private CompactBlock(Hash256 hash, Hash256 prevBlockHash, int difficulty, long nonce, long salt, int size,
+                         int[] prefilledPositions, Transaction[] prefilled, long[] shortIds) {
+        this.hash = hash;
+        this.prevBlockHash = prevBlockHash;
+        this.difficulty = difficulty;
+        this.nonce = nonce;
+        this.salt = salt;
+        this.size = size;
+        this.prefilledPositions = prefilledPositions;
+        this.prefilled = prefilled;
+        this.shortIds = shortIds;
+    }
+
+    /** @return the compact form of the finalized {@code block} with only the coinbase prefilled */
+    public static CompactBlock of(Block block) {
+        return of(block, tx -> false);
+    }
+
+    /**
+     * @return the compact form of the finalized {@code block}, prefilling the coinbase and every
+     *         transaction {@code likelyMissing} accepts
+     */
+    public static CompactBlock of(Block block, Predicate<Transaction> likelyMissing) {
+        if (block.getHash256() == null || block.getPrevBlockHash256() == null)
+            throw new IllegalArgumentException("need a finalized block with a parent");
+        long salt = SALTS.nextLong();
+        long key = salt ^ block.getHash256().longHashCode();
+        List<Transaction> txs = block.getTransactions();
+        List<Integer> positions = new ArrayList<>();
+        List<Transaction> full = new ArrayList<>();
+        positions.add(0);
+        full.add(block.getCoinbase());
+        long[] ids = new long[txs.size()];
+        int numIds = 0;
+        for (int i = 0; i < txs.size(); i++) {
+            Transaction tx = txs.get(i);
+            if (likelyMissing.test(tx)) {
+                positions.add(i + 1);
+                full.add(tx);
+            } else {
+                ids[numIds++] = shortId(key, tx.getHash256());
+            }
+        }
+        int[] prefilledPositions = new int[positions.size()];
+        for (int i = 0; i < prefilledPositions.length; i++)
+            prefilledPositions[i] = positions.get(i);
+        return new CompactBlock(block.getHash256(), block.getPrevBlockHash256(), block.getDifficulty(),
+                block.getNonce(), salt, txs.size() + 1, prefilledPositions, full.toArray(new Transaction[0]),
+                Arrays.copyOf(ids, numIds));
+    }
+
+    private static long shortId(long key, Hash256 txHash) {
+        return CountingBloomFilter.mix(txHash.longHashCode() ^ key) & SHORT_ID_MASK;
+    }
+
+    public Hash256 getHash() {
+        return hash;
+    }
+
+    public Hash256 getPrevBlockHash() {
+        return prevBlockHash;
+    }
+
+    /** @return the number of positions in the block, the coinbase included */
+    public int size() {
+        return size;
+    }
+
+    public int numPrefilled() {
+        return prefilled.length;
+    }
+
+    /**
+     * @return the transactions of the block by position, taken from the prefilled ones and from
+     *         {@code pool}; positions whose short id is unknown or ambiguous in the pool are null
+     */
+    public Transaction[] match(TransactionPool pool) {
+        long key = salt ^ hash.longHashCode();
+        HashMap<Long, Transaction> byShortId = new HashMap<>();
+        HashSet<Long> ambiguous = new HashSet<>();
+        for (Transaction tx : pool.getTransactions()) {
+            Long id = shortId(key, tx.getHash256());
+            if (byShortId.putIfAbsent(id, tx) != null)
+                ambiguous.add(id);
+        }
+        Transaction[] slots = new Transaction[size];
+        int p = 0;
+        int s = 0;
+        for (int position = 0; position < size; position++) {
+            if (p < prefilledPositions.length && prefilledPositions[p] == position) {
+                slots[position] = prefilled[p++];
+            } else {
+                long id = shortIds[s++];
+                if (!ambiguous.contains(id))
+                    slots[position] = byShortId.get(id);
+            }
+        }
+        return slots;
+    }
+
+    /** @return the positions still empty in {@code slots} */
+    public static int[] missing(Transaction[] slots) {
+        int count = 0;
+        for (Transaction tx : slots) {
+            if (tx == null)
+                count++;
+        }
+        int[] positions = new int[count];
+        int j = 0;
+        for (int i = 0; i < slots.length; i++) {
+            if (slots[i] == null)
+                positions[j++] = i;
+        }
+        return positions;
+    }
+
+    /**
+     * @return the transactions of {@code block} at {@code positions}, to answer the receiver's
+     *         request for the ones it is missing
+     */
+    public static List<Transaction> transactionsAt(Block block, int[] positions) {
+        List<Transaction> txs = new ArrayList<>(positions.length);
+        for (int position : positions)
+            txs.add(position == 0 ? block.getCoinbase() : block.getTransaction(position - 1));
+        return txs;
+    }
+
+    /**
+     * @return the block made of {@code slots}, or null if a slot is empty, a transaction does not
+     *         hash to the hash it carries, slot 0 is not a coinbase, or the result does not hash to
+     *         the announced block hash, e.g. because of a short id collision. The coinbase is taken
+     *         over as it is; the chain checks its payout when the block is added.
+     */
+    public Block assemble(Transaction[] slots) {
+        if (slots.length != size || missing(slots).length > 0)
+            return null;
+        for (Transaction tx : slots) {
+            if (!tx.hasValidHash())
+                return null;
+        }
+        if (!slots[0].isCoinbase())
+            return null;
+        Block block = new Block(prevBlockHash, slots[0]);
+        for (int i = 1; i < size; i++)
+            block.addTransaction(slots[i]);
+        block.setDifficulty(difficulty);
+        block.setNonce(nonce);
+        block.finalize();
+        return hash.equals(block.getHash256()) ? block : null;
+    }
+
+    /**
+     * Layout, numbers big-endian: block hash, parent hash, difficulty, nonce, salt, number of
+     * positions, number of short ids followed by the short ids, number of prefilled transactions
+     * followed by position, record length and {@link TransactionView} record of each.
+     *
+     * @return the compact block in the layout {@link #parse} reads
+     */
+    public ByteBuffer serialize() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.write(hash.toByteArray());
+            out.write(prevBlockHash.toByteArray());
+            out.writeInt(difficulty);
+            out.writeLong(nonce);
+            out.writeLong(salt);
+            out.writeInt(size);
+            out.writeInt(shortIds.length);
+            for (long id : shortIds) {
+                out.writeShort((int) (id >>> 32));
+                out.writeInt((int) id);
+            }
+            out.writeInt(prefilled.length);
+            for (int i = 0; i < prefilled.length; i++) {
+                out.writeInt(prefilledPositions[i]);
+                ByteArrayOutputStream record = new ByteArrayOutputStream();
+                // the record is placed after its position and length
+                TransactionView.write(prefilled[i], new DataOutputStream(record), out.size() + Integer.BYTES);
+                out.writeInt(record.size());
+                record.writeTo(out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); //in memory, cannot happen
+        }
+        return ByteBuffer.wrap(bytes.toByteArray()).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the compact block serialized in the remaining bytes of {@code buffer}; the prefilled
+     *         transactions are views, checked against the hash they carry
+     */
+    public static CompactBlock parse(ByteBuffer buffer) {
+        ByteBuffer data = buffer.slice().asReadOnlyBuffer();
+        try {
+            Hash256 hash = Hash256.read(data);
+            Hash256 prevBlockHash = Hash256.read(data);
+            int difficulty = data.getInt();
+            long nonce = data.getLong();
+            long salt = data.getLong();
+            int size = data.getInt();
+            int numIds = data.getInt();
+            if (numIds < 0 || numIds >= size || (long) numIds * SHORT_ID_BYTES > data.remaining())
+                throw new IllegalArgumentException("bad short id count " + numIds);
+            long[] shortIds = new long[numIds];
+            for (int i = 0; i < numIds; i++)
+                shortIds[i] = (data.getShort() & 0xffffL) << 32 | (data.getInt() & 0xffffffffL);
+            int numPrefilled = data.getInt();
+            if (numPrefilled + numIds != size)
+                throw new IllegalArgumentException("positions do not add up");
+            int[] positions = new int[numPrefilled];
+            Transaction[] prefilled = new Transaction[numPrefilled];
+            for (int i = 0; i < numPrefilled; i++) {
+                positions[i] = data.getInt();
+                if (positions[i] >= size || (i > 0 && positions[i] <= positions[i - 1]))
+                    throw new IllegalArgumentException("bad prefilled position " + positions[i]);
+                int length = data.getInt();
+                prefilled[i] = new TransactionView(data, data.position());
+                if (!prefilled[i].hasValidHash())
+                    throw new IllegalArgumentException("prefilled transaction " + i + " does not match its hash");
+                data.position(data.position() + length);
+            }
+            if (numPrefilled == 0 || positions[0] != 0)
+                throw new IllegalArgumentException("coinbase is not prefilled");
+            return new CompactBlock(hash, prevBlockHash, difficulty, nonce, salt, size, positions, prefilled,
+                    shortIds);
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IllegalArgumentException("truncated compact block", e);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counting Bloom filter over 64 bit keys with 4 bit counters, so entries can be removed again.
+ * {@link #mightContain} never returns false for a key that was added and not removed; it returns
+ * true for an absent key with roughly the false positive rate the filter was sized for, as long
+ * as it holds at most {@link #capacity} keys. Counters that reach 15 stay there.
+ *
+ * <p>
+ * Adding and removing from several threads at once is safe.
+ */
+public class CountingBloomFilter {
+
+    private static final int COUNTERS_PER_WORD = 16;
+    private static final long COUNTER_MASK = 0xfL;
+
+    private final int capacity;
+    private final int numCounters;
+    private final int numHashes;
+    private final AtomicLongArray counters;
+
+    /** create a filter for {@code capacity} keys with a false positive rate of about {@code fpRate} */
+    public CountingBloomFilter(int capacity, double fpRate) {
+        this.capacity = Math.max(capacity, 1);
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-this.capacity * Math.log(fpRate) / (ln2 * ln2));
+        this.numCounters = (int) Math.max(COUNTERS_PER_WORD, Math.min(m, Integer.MAX_VALUE - COUNTERS_PER_WORD));
+        this.numHashes = Math.max(1, (int) Math.round((double) numCounters / this.capacity * ln2));
+        this.counters = new AtomicLongArray((numCounters + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD);
+    }
+
+    /** create a copy of {@code filter} */
+    public CountingBloomFilter(CountingBloomFilter filter) {
+        this.capacity = filter.capacity;
+        this.numCounters = filter.numCounters;
+        this.numHashes = filter.numHashes;
+        this.counters = new AtomicLongArray(filter.counters.length());
+        for (int i = 0; i < counters.length(); i++)
+            counters.set(i, filter.counters.get(i));
+    }
+
+    /** @return the number of keys the filter was sized for */
+    public int capacity() {
+        return capacity;
+    }
+
+    public void add(long key) {
+        long hash = mix(key);
+        for (int i = 0; i < numHashes; i++)
+            update(index(hash, i), 1);
+    }
+
+    /** remove {@code key}, which must have been added before */
+    public void remove(long key) {
+        long hash = mix(key);
+        for (int i = 0; i < numHashes; i++)
+            update(index(hash, i), -1);
+    }
+
+    /** @return false if {@code key} is definitely not in the filter */
+    public boolean mightContain(long key) {
+        long hash = mix(key);
+        for (int i = 0; i < numHashes; i++) {
+            int index = index(hash, i);
+            long word = counters.get(index / COUNTERS_PER_WORD);
+            if (((word >>> shift(index)) & COUNTER_MASK) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    // double hashing, the two halves of the mixed key give all numHashes positions
+    private int index(long hash, int i) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        return Math.floorMod(h1 + i * h2, numCounters);
+    }
+
+    private static int shift(int index) {
+        return (index % COUNTERS_PER_WORD) * 4;
+    }
+
+    private void update(int index, int delta) {
+        int word = index / COUNTERS_PER_WORD;
+        int shift = shift(index);
+        while (true) {
+            long current = counters.get(word);
+            long count = (current >>> shift) & COUNTER_MASK;
+            if (count == COUNTER_MASK || (delta < 0 && count == 0))
+                return; //saturated counters stay saturated
+            long updated = current + ((long) delta << shift);
+            if (counters.compareAndSet(word, current, updated))
+                return;
+        }
+    }
+
+    /** 64 bit finalizer of MurmurHash3, spreads keys that differ in few bits */
+    public static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb93fe53a87cbL;
+        key ^= key >>> 33;
+        return key;
+    }
+}
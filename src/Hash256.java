@@ -0,0 +1,102 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Immutable 256 bit hash stored as four big-endian {@code long}s. Cheaper to keep, compare and use
+ * as a map key than a {@code byte[]}: no array header, no defensive copies, no byte loops, and the
+ * hash code is computed once.
+ */
+public final class Hash256 implements Comparable<Hash256> {
+
+    public static final int BYTES = 32;
+
+    private final long w0;
+    private final long w1;
+    private final long w2;
+    private final long w3;
+    private final int hashCode;
+
+    public Hash256(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+        // the words are already uniformly distributed for real hashes, folding them is enough
+        this.hashCode = Long.hashCode(w0 ^ w1 ^ w2 ^ w3);
+    }
+
+    /** @return the hash held by {@code bytes}, or null if {@code bytes} is null */
+    public static Hash256 of(byte[] bytes) {
+        if (bytes == null)
+            return null;
+        if (bytes.length != BYTES)
+            throw new IllegalArgumentException("expected " + BYTES + " bytes, got " + bytes.length);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        return new Hash256(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * @return the hash held by {@code bytes}, or null if {@code bytes} is null or not 32 bytes
+     *         long; for hashes taken from transactions, which may be malformed
+     */
+    public static Hash256 tryOf(byte[] bytes) {
+        if (bytes == null || bytes.length != BYTES)
+            return null;
+        return of(bytes);
+    }
+
+    /** @return the hash read from the next 32 bytes of {@code buffer} */
+    public static Hash256 read(ByteBuffer buffer) {
+        return new Hash256(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+    }
+
+    /** @return the hash held by the 32 bytes of {@code buffer} at {@code index} */
+    public static Hash256 read(ByteBuffer buffer, int index) {
+        return new Hash256(buffer.getLong(index), buffer.getLong(index + 8), buffer.getLong(index + 16),
+                buffer.getLong(index + 24));
+    }
+
+    /** write the 32 bytes of this hash to {@code buffer} */
+    public void write(ByteBuffer buffer) {
+        buffer.putLong(w0).putLong(w1).putLong(w2).putLong(w3);
+    }
+
+    /** @return a new array holding the 32 bytes of this hash */
+    public byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(BYTES);
+        write(buffer);
+        return buffer.array();
+    }
+
+    public boolean equals(Object other) {
+        if (!(other instanceof Hash256))
+            return false;
+        Hash256 h = (Hash256) other;
+        return ((w0 ^ h.w0) | (w1 ^ h.w1) | (w2 ^ h.w2) | (w3 ^ h.w3)) == 0;
+    }
+
+    public int hashCode() {
+        return hashCode;
+    }
+
+    /** @return a 64 bit hash code, for structures that need more bits than {@link #hashCode} */
+    public long longHashCode() {
+        return w0 ^ w1 ^ w2 ^ w3;
+    }
+
+    /** Compares the hashes as unsigned 256 bit numbers, i.e. their bytes lexicographically */
+    public int compareTo(Hash256 h) {
+        int c = Long.compareUnsigned(w0, h.w0);
+        if (c == 0)
+            c = Long.compareUnsigned(w1, h.w1);
+        if (c == 0)
+            c = Long.compareUnsigned(w2, h.w2);
+        if (c == 0)
+            c = Long.compareUnsigned(w3, h.w3);
+        return c;
+    }
+
+    /** @return the hash in hex */
+    public String toString() {
+        return Hex.encode(toByteArray());
+    }
+}
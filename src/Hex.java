@@ -0,0 +1,17 @@
+
+/** hex encoding of hashes and raw data for printing and export */
+public class Hex {
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    public static String encode(byte[] bytes) {
+        if (bytes == null)
+            return "null";
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = DIGITS[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
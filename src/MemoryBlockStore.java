@@ -0,0 +1,36 @@
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** {@link BlockStore} keeping all bodies on the heap */
+public class MemoryBlockStore implements BlockStore {
+
+    private ConcurrentHashMap<Hash256, Block> blocks = new ConcurrentHashMap<>();
+    private AtomicLong estimatedBytes = new AtomicLong();
+
+    public void put(Block block) {
+        Block replaced = blocks.put(block.getHash256(), block);
+        estimatedBytes.addAndGet(entryBytes(block) - (replaced == null ? 0 : entryBytes(replaced)));
+    }
+
+    public Block get(Hash256 hash) {
+        return blocks.get(hash);
+    }
+
+    public void remove(Hash256 hash) {
+        Block removed = blocks.remove(hash);
+        if (removed != null)
+            estimatedBytes.addAndGet(-entryBytes(removed));
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    private static long entryBytes(Block block) {
+        return MemoryEstimator.HASH_MAP_ENTRY + MemoryEstimator.HASH256 + MemoryEstimator.block(block);
+    }
+
+    public int size() {
+        return blocks.size();
+    }
+}
@@ -0,0 +1,96 @@
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+
+/**
+ * Rough retained sizes of the objects the chain keeps, for a 64 bit JVM with compressed oops
+ * (12 byte object headers, 4 byte references, 8 byte alignment). Objects that may be shared,
+ * such as the address of an output, are counted for every holder, so the estimates err on the
+ * high side.
+ */
+public final class MemoryEstimator {
+
+    public static final int OBJECT_HEADER = 12;
+    public static final int REFERENCE = 4;
+
+    /** a {@link Hash256} */
+    public static final long HASH256 = align(OBJECT_HEADER + 4 * Long.BYTES + Integer.BYTES);
+    /** a hash map node plus its share of the table at the default load factor */
+    public static final long HASH_MAP_ENTRY = align(OBJECT_HEADER + Integer.BYTES + 3 * REFERENCE) + 6;
+    /** a linked hash map node plus its share of the table */
+    public static final long LINKED_HASH_MAP_ENTRY = HASH_MAP_ENTRY + 2 * REFERENCE;
+    /** a skip list node with its average share of index nodes */
+    public static final long SKIP_LIST_ENTRY = align(OBJECT_HEADER + 3 * REFERENCE) + 16;
+    /** a {@link UTXO} with its own {@link Hash256} */
+    public static final long UTXO = align(OBJECT_HEADER + REFERENCE + Integer.BYTES) + HASH256;
+    /** a {@link Transaction.Output} without its address */
+    public static final long OUTPUT = align(OBJECT_HEADER + Long.BYTES + 2 * REFERENCE);
+    /** a {@link Transaction.Input} without its arrays */
+    public static final long INPUT = align(OBJECT_HEADER + 4 * REFERENCE + Integer.BYTES);
+
+    private MemoryEstimator() {
+    }
+
+    public static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    public static long byteArray(int length) {
+        return align(OBJECT_HEADER + Integer.BYTES + length);
+    }
+
+    /** an {@code ArrayList} holding {@code size} elements, without the elements */
+    public static long arrayList(int size) {
+        return align(OBJECT_HEADER + 2 * Integer.BYTES + REFERENCE)
+                + align(OBJECT_HEADER + Integer.BYTES + (long) size * REFERENCE);
+    }
+
+    /** a JDK RSA public key: the key object, modulus and exponent and the cached encoding */
+    public static long publicKey(PublicKey key) {
+        if (!(key instanceof RSAPublicKey))
+            return 512;
+        int modulusBytes = (((RSAPublicKey) key).getModulus().bitLength() + 7) / 8;
+        long modulus = 40 + align(OBJECT_HEADER + Integer.BYTES + modulusBytes);
+        long exponent = 40 + 24;
+        long encoded = byteArray(modulusBytes + 38);
+        return 96 + modulus + exponent + encoded;
+    }
+
+    /** an output with its address */
+    public static long output(Transaction.Output txOut) {
+        return OUTPUT + (txOut.address == null ? 0 : publicKey(txOut.address));
+    }
+
+    /** a transaction with its inputs, outputs and hashes */
+    public static long transaction(Transaction tx) {
+        long bytes = align(OBJECT_HEADER + 4 * REFERENCE + 1) + byteArray(32) + HASH256
+                + arrayList(tx.numInputs()) + arrayList(tx.numOutputs());
+        for (Transaction.Input in : tx.getInputs()) {
+            bytes += INPUT;
+            if (in.prevTxHash != null)
+                bytes += byteArray(in.prevTxHash.length);
+            if (in.signature != null)
+                bytes += byteArray(in.signature.length);
+        }
+        for (Transaction.Output op : tx.getOutputs())
+            bytes += output(op);
+        return bytes;
+    }
+
+    /** a block with all its transactions */
+    public static long block(Block block) {
+        long bytes = align(OBJECT_HEADER + 4 * REFERENCE + Integer.BYTES + Long.BYTES) + 2 * HASH256
+                + arrayList(block.getTransactions().size()) + transaction(block.getCoinbase());
+        for (Transaction tx : block.getTransactions())
+            bytes += transaction(tx);
+        return bytes;
+    }
+
+    /**
+     * an undo record; the outputs it refers to are shared with the block's transactions and not
+     * counted
+     */
+    public static long undo(BlockUndo undo) {
+        long entries = (long) undo.numSpent() + undo.numCreated();
+        return align(OBJECT_HEADER + 2 * REFERENCE) + 2 * 64 + entries * (LINKED_HASH_MAP_ENTRY + UTXO);
+    }
+}
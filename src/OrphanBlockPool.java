@@ -0,0 +1,110 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Bounded buffer for blocks that arrived before their parent. Orphans are indexed by the hash of
+ * the parent they are waiting for, so they can be connected as soon as that parent is. The oldest
+ * orphans are evicted once the pool is full or once they have waited longer than the maximum age.
+ */
+public class OrphanBlockPool {
+
+    private final int maxOrphans;
+    private final long maxAgeMillis;
+
+    /** all orphans by their own hash, in arrival order */
+    private LinkedHashMap<Hash256, Orphan> orphans = new LinkedHashMap<>();
+
+    /** orphans grouped by the hash of the missing parent */
+    private HashMap<Hash256, List<Orphan>> byParent = new HashMap<>();
+
+    public OrphanBlockPool(int maxOrphans, long maxAgeMillis) {
+        this.maxOrphans = maxOrphans;
+        this.maxAgeMillis = maxAgeMillis;
+    }
+
+    /**
+     * Buffer {@code block} until its parent shows up.
+     *
+     * @return false if the block was already buffered
+     */
+    public boolean addOrphan(Block block) {
+        Hash256 hash = block.getHash256();
+        if (orphans.containsKey(hash))
+            return false;
+        evictExpired(System.currentTimeMillis());
+        while (orphans.size() >= maxOrphans)
+            remove(orphans.keySet().iterator().next());
+
+        Orphan orphan = new Orphan(block, hash, System.currentTimeMillis());
+        orphans.put(hash, orphan);
+        byParent.computeIfAbsent(block.getPrevBlockHash256(), k -> new ArrayList<>()).add(orphan);
+        return true;
+    }
+
+    /** @return true if a block with hash {@code blockHash} is waiting for its parent */
+    public boolean contains(Hash256 blockHash) {
+        return orphans.containsKey(blockHash);
+    }
+
+    /**
+     * Remove and return all orphans waiting for the block with hash {@code parentHash}, in arrival
+     * order
+     */
+    public List<Block> takeChildren(Hash256 parentHash) {
+        List<Orphan> children = byParent.remove(parentHash);
+        List<Block> blocks = new ArrayList<>();
+        if (children == null)
+            return blocks;
+        for (Orphan orphan : children) {
+            orphans.remove(orphan.hash);
+            blocks.add(orphan.block);
+        }
+        return blocks;
+    }
+
+    public int size() {
+        return orphans.size();
+    }
+
+    private void evictExpired(long now) {
+        Iterator<Orphan> it = orphans.values().iterator();
+        while (it.hasNext()) {
+            Orphan oldest = it.next();
+            if (now - oldest.arrival <= maxAgeMillis)
+                return; //arrival order, so everything after this one is younger
+            it.remove();
+            unlinkFromParent(oldest);
+        }
+    }
+
+    private void remove(Hash256 hash) {
+        Orphan orphan = orphans.remove(hash);
+        if (orphan != null)
+            unlinkFromParent(orphan);
+    }
+
+    private void unlinkFromParent(Orphan orphan) {
+        Hash256 parent = orphan.block.getPrevBlockHash256();
+        List<Orphan> siblings = byParent.get(parent);
+        if (siblings == null)
+            return;
+        siblings.remove(orphan);
+        if (siblings.isEmpty())
+            byParent.remove(parent);
+    }
+
+    private static class Orphan {
+        private final Block block;
+        private final Hash256 hash;
+        private final long arrival;
+
+        private Orphan(Block block, Hash256 hash, long arrival) {
+            this.block = block;
+            this.hash = hash;
+            this.arrival = arrival;
+        }
+    }
+}
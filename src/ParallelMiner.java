@@ -0,0 +1,181 @@
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Proof-of-work miner that searches the nonce space of a block on several threads. Worker
+ * {@code i} of {@code n} tries the nonces {@code i, i + n, i + 2n, ...}. Each attempt clones a
+ * digest that has already consumed the block ({@link Block#hashMidstate}) and adds the 8 nonce
+ * bytes, so the block is serialized once per job, not once per attempt.
+ *
+ * <p>
+ * Only one block is mined at a time. {@link #abort} stops the current job, e.g. when a competing
+ * block for the same height arrives; workers check for it before every attempt. A job can also be
+ * given a check for staleness, e.g. whether the chain's tip is still the block's parent, which
+ * the first worker runs every {@value #STALE_CHECK_INTERVAL} attempts.
+ */
+public class ParallelMiner {
+
+    static final int STALE_CHECK_INTERVAL = 1 << 14;
+
+    private final int threads;
+    private final ExecutorService workers;
+    private final long[] hashesPerWorker;
+
+    private volatile boolean stop;
+    private volatile Block mining;
+    private long elapsedNanos;
+
+    public ParallelMiner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelMiner(int threads) {
+        if (threads < 1)
+            throw new IllegalArgumentException("need at least one thread");
+        this.threads = threads;
+        this.hashesPerWorker = new long[threads];
+        this.workers = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "miner");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Search a nonce that gives {@code block} a hash with {@code difficulty} leading zero bits. On
+     * success the block carries the difficulty and the nonce and is finalized.
+     *
+     * @return true if a nonce was found, false if the job was aborted
+     */
+    public boolean mine(Block block, int difficulty) {
+        return mine(block, difficulty, null);
+    }
+
+    /**
+     * Same as {@link #mine(Block, int)}, but the job is also aborted once {@code stale} (may be
+     * null) returns true. It is asked before the first attempt too.
+     */
+    public synchronized boolean mine(Block block, int difficulty, BooleanSupplier stale) {
+        block.setDifficulty(difficulty);
+        MessageDigest midstate;
+        try {
+            midstate = block.hashMidstate();
+        } catch (NoSuchAlgorithmException x) {
+            x.printStackTrace(System.err);
+            return false;
+        }
+
+        stop = false;
+        mining = block;
+        AtomicReference<Long> found = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            int worker = i;
+            workers.execute(() -> {
+                try {
+                    search(midstate, difficulty, worker, worker == 0 ? stale : null, found);
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            stop = true;
+            Thread.currentThread().interrupt();
+        }
+        elapsedNanos = System.nanoTime() - start;
+        mining = null;
+
+        if (found.get() == null)
+            return false;
+        block.setNonce(found.get());
+        block.finalize();
+        return true;
+    }
+
+    // try every threads-th nonce starting at worker until one fits or the job is stopped
+    private void search(MessageDigest midstate, int difficulty, int worker, BooleanSupplier stale,
+                        AtomicReference<Long> found) {
+        ByteBuffer nonceBytes = ByteBuffer.allocate(Long.BYTES);
+        long hashes = 0;
+        try {
+            long nonce = worker;
+            // the nonce space wraps around after 2^64 / threads attempts per worker
+            for (long attempts = Long.divideUnsigned(-1L, threads); attempts != 0 && !stop; attempts--) {
+                if (stale != null && hashes % STALE_CHECK_INTERVAL == 0 && stale.getAsBoolean()) {
+                    stop = true;
+                    break;
+                }
+                MessageDigest md = (MessageDigest) midstate.clone();
+                nonceBytes.putLong(0, nonce);
+                md.update(nonceBytes.array());
+                hashes++;
+                if (Block.hasLeadingZeroBits(md.digest(), difficulty)) {
+                    found.compareAndSet(null, nonce);
+                    stop = true;
+                    break;
+                }
+                nonce += threads;
+            }
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException("SHA-256 digest cannot be cloned", e);
+        } finally {
+            hashesPerWorker[worker] = hashes;
+        }
+    }
+
+    /**
+     * stop the current job, if any; {@link #mine} returns false unless a nonce was found already
+     */
+    public void abort() {
+        stop = true;
+    }
+
+    /**
+     * stop the current job if {@code arrived} is a different block on the same parent, which
+     * makes the block being mined stale
+     */
+    public void competingBlock(Block arrived) {
+        Block current = mining;
+        if (current != null && arrived != current && current.getPrevBlockHash256() != null
+                && current.getPrevBlockHash256().equals(arrived.getPrevBlockHash256()))
+            stop = true;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /** @return the hashes per second each worker managed during the last job */
+    public synchronized double[] getHashRatePerCore() {
+        double[] rates = new double[threads];
+        if (elapsedNanos == 0)
+            return rates;
+        for (int i = 0; i < threads; i++)
+            rates[i] = hashesPerWorker[i] * 1e9 / elapsedNanos;
+        return rates;
+    }
+
+    /** @return the hashes per second of all workers together during the last job */
+    public synchronized double getHashRate() {
+        double total = 0;
+        for (double rate : getHashRatePerCore())
+            total += rate;
+        return total;
+    }
+
+    /** release the worker threads */
+    public void close() {
+        stop = true;
+        workers.shutdown();
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of hashes of blocks or transactions already found invalid, with the reason. Lets
+ * resubmissions of the same garbage be rejected with one lookup instead of another round of
+ * validation. Only failures that can never turn into success belong here; a block waiting for
+ * its parent or a transaction spending outputs not known yet is not invalid.
+ *
+ * <p>
+ * When full, the least recently hit entry is evicted. All methods are thread-safe.
+ */
+public class RejectionCache {
+
+    public enum Reason {
+        /** a block or transaction that breaks a rule checkable without any chain state */
+        MALFORMED,
+        /** an input signature does not verify against the spent output's address */
+        BAD_SIGNATURE,
+        /** the same output is claimed more than once */
+        DOUBLE_SPEND,
+        /** an output has a negative value */
+        NEGATIVE_OUTPUT,
+        /** the outputs are worth more than the inputs */
+        INSUFFICIENT_INPUTS,
+        /** a block containing a transaction that cannot be applied to its parent's state */
+        INVALID_TRANSACTIONS,
+        /** a block whose hash does not meet its difficulty or the chain's minimum difficulty */
+        INSUFFICIENT_WORK,
+        /** a block at the height of the checkpoint that is not the checkpoint block */
+        CHECKPOINT_MISMATCH,
+        /** a block descending from an invalid block */
+        INVALID_PARENT
+    }
+
+    private final LinkedHashMap<Hash256, Reason> rejected;
+
+    private long hits;
+    private long evictions;
+
+    public RejectionCache(int capacity) {
+        rejected = new LinkedHashMap<Hash256, Reason>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Hash256, Reason> eldest) {
+                if (size() <= capacity)
+                    return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    /** remember that the block or transaction with hash {@code hash} is invalid */
+    public synchronized void reject(Hash256 hash, Reason reason) {
+        if (hash != null)
+            rejected.put(hash, reason);
+    }
+
+    /** @return why the block or transaction with hash {@code hash} is invalid, or null if not known to be */
+    public synchronized Reason lookup(Hash256 hash) {
+        Reason reason = hash == null ? null : rejected.get(hash);
+        if (reason != null)
+            hits++;
+        return reason;
+    }
+
+    public synchronized int size() {
+        return rejected.size();
+    }
+
+    /** @return how many lookups found a known-invalid hash */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+}
@@ -0,0 +1,53 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link BlockStore} keeping every body in its serialized form. {@link #get} hands out a
+ * {@link BlockView} over the stored bytes, so reading a block decodes only what the reader uses.
+ */
+public class SerializedBlockStore implements BlockStore {
+
+    // map entry, key and buffer object of one stored block
+    private static final long ENTRY_OVERHEAD = MemoryEstimator.HASH_MAP_ENTRY + MemoryEstimator.HASH256 + 48;
+
+    private ConcurrentHashMap<Hash256, ByteBuffer> blocks = new ConcurrentHashMap<>();
+    private AtomicLong estimatedBytes = new AtomicLong();
+
+    public void put(Block block) {
+        ByteBuffer serialized = BlockView.serialize(block);
+        ByteBuffer replaced = blocks.put(block.getHash256(), serialized);
+        estimatedBytes.addAndGet(entryBytes(serialized) - (replaced == null ? 0 : entryBytes(replaced)));
+    }
+
+    public Block get(Hash256 hash) {
+        ByteBuffer serialized = blocks.get(hash);
+        return serialized == null ? null : BlockView.wrap(serialized);
+    }
+
+    public void remove(Hash256 hash) {
+        ByteBuffer removed = blocks.remove(hash);
+        if (removed != null)
+            estimatedBytes.addAndGet(-entryBytes(removed));
+    }
+
+    public int size() {
+        return blocks.size();
+    }
+
+    /** @return the total size of the stored blocks in bytes */
+    public long sizeInBytes() {
+        long bytes = 0;
+        for (ByteBuffer serialized : blocks.values())
+            bytes += serialized.remaining();
+        return bytes;
+    }
+
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    private static long entryBytes(ByteBuffer serialized) {
+        return ENTRY_OVERHEAD + MemoryEstimator.byteArray(serialized.capacity());
+    }
+}
@@ -0,0 +1,173 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+/**
+ * Validates and applies all transactions of a block to a {@link UTXOPool} in parallel. The
+ * outpoints spent and created by the block are partitioned by hash into shards, so every claim on
+ * one outpoint lands in the same shard and double-spends are detected there without locking.
+ *
+ * <p>
+ * The block is checked completely before the pool is touched: either all transactions are valid
+ * and applied, or the pool stays unchanged. This makes the outcome independent of thread
+ * scheduling and the same as {@link TxHandler#handleTxs} accepting every transaction.
+ */
+public class ShardedUTXOApplier {
+
+    private final int numShards;
+    private final ExecutorService executor;
+
+    /** create an applier using {@code numShards} shards and as many daemon worker threads */
+    public ShardedUTXOApplier(int numShards) {
+        this.numShards = numShards;
+        this.executor = Executors.newFixedThreadPool(numShards, runnable -> {
+            Thread thread = new Thread(runnable, "utxo-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Apply {@code txs} to {@code pool} if all of them are valid. Signatures of transactions whose
+     * hashes are in {@code verifiedTxs} are not checked again.
+     *
+     * @return the record of the changes, or null (leaving the pool untouched) if any transaction
+     *         is invalid
+     */
+    public BlockUndo apply(UTXOPool pool, Transaction[] txs, Set<Hash256> verifiedTxs) {
+        List<Shard> shards = new ArrayList<>();
+        for (int i = 0; i < numShards; i++)
+            shards.add(new Shard());
+        Transaction.Output[][] spentOutputs = new Transaction.Output[txs.length][];
+        for (int t = 0; t < txs.length; t++) {
+            Transaction tx = txs[t];
+            spentOutputs[t] = new Transaction.Output[tx.numInputs()];
+            for (int i = 0; i < tx.numInputs(); i++) {
+                Transaction.Input in = tx.getInput(i);
+                Hash256 prevTxHash = Hash256.tryOf(in.prevTxHash);
+                if (prevTxHash == null)
+                    return null;
+                UTXO utxo = new UTXO(prevTxHash, in.outputIndex);
+                shardOf(shards, utxo).spends.add(new Spend(utxo, t, i));
+            }
+            for (int i = 0; i < tx.numOutputs(); i++) {
+                UTXO utxo = new UTXO(tx.getHash256(), i);
+                shardOf(shards, utxo).created.put(utxo, tx.getOutput(i));
+            }
+        }
+
+        // phase 1: resolve every spent output and look for double-spends, one shard per task
+        if (!allTrue(shards, shard -> shard.resolve(pool, spentOutputs)))
+            return null;
+
+        // phase 2: check signatures and values, one transaction per task
+        List<CompletableFuture<Boolean>> checks = new ArrayList<>();
+        for (int t = 0; t < txs.length; t++) {
+            Transaction tx = txs[t];
+            Transaction.Output[] spent = spentOutputs[t];
+            checks.add(CompletableFuture.supplyAsync(() -> isValidTx(tx, spent, verifiedTxs), executor));
+        }
+        for (CompletableFuture<Boolean> check : checks)
+            if (!check.join())
+                return null;
+
+        // phase 3: update the pool, one shard per task
+        allTrue(shards, shard -> shard.commit(pool));
+        BlockUndo undo = new BlockUndo();
+        for (Shard shard : shards) {
+            for (Map.Entry<UTXO, Transaction.Output> entry : shard.spentFromPool.entrySet())
+                undo.spend(entry.getKey(), entry.getValue());
+            for (Map.Entry<UTXO, Transaction.Output> entry : shard.created.entrySet())
+                undo.create(entry.getKey(), entry.getValue());
+        }
+        return undo;
+    }
+
+    /** rules (2), (4) and (5) of {@link TxHandler#isValidTx}, with the spent outputs resolved */
+    private static boolean isValidTx(Transaction tx, Transaction.Output[] spent, Set<Hash256> verifiedTxs) {
+        boolean checkSignatures = verifiedTxs.isEmpty() || !verifiedTxs.contains(tx.getHash256());
+        long sumInputs = 0;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input in = tx.getInput(i);
+            if (checkSignatures && in.signature != null
+                    && !Crypto.verifySignature(spent[i].address, tx.getRawDataToSign(i), in.signature))
+                return false;
+        }
+        for (Transaction.Output op : tx.getOutputs()) {
+            if (op.value < 0)
+                return false;
+        }
+        try {
+            for (Transaction.Output op : spent)
+                sumInputs = Math.addExact(sumInputs, op.value);
+            return sumInputs >= tx.sumOutputs();
+        } catch (ArithmeticException overflow) {
+            return false;
+        }
+    }
+
+    private Shard shardOf(List<Shard> shards, UTXO utxo) {
+        return shards.get(Math.floorMod(utxo.hashCode(), numShards));
+    }
+
+    private boolean allTrue(List<Shard> shards, Predicate<Shard> step) {
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (Shard shard : shards)
+            results.add(CompletableFuture.supplyAsync(() -> step.test(shard), executor));
+        boolean ok = true;
+        for (CompletableFuture<Boolean> result : results)
+            ok &= result.join();
+        return ok;
+    }
+
+    private static class Spend {
+        private final UTXO utxo;
+        private final int tx;
+        private final int input;
+
+        private Spend(UTXO utxo, int tx, int input) {
+            this.utxo = utxo;
+            this.tx = tx;
+            this.input = input;
+        }
+    }
+
+    private static class Shard {
+        private final List<Spend> spends = new ArrayList<>();
+        /** outputs created by the block, the ones also spent by it are dropped in resolve */
+        private final HashMap<UTXO, Transaction.Output> created = new HashMap<>();
+        private final HashMap<UTXO, Transaction.Output> spentFromPool = new HashMap<>();
+
+        private boolean resolve(UTXOPool pool, Transaction.Output[][] spentOutputs) {
+            Set<UTXO> claimed = new HashSet<>();
+            for (Spend spend : spends) {
+                if (!claimed.add(spend.utxo))
+                    return false; //spent twice inside the block
+                Transaction.Output output = created.remove(spend.utxo);
+                if (output == null) {
+                    output = pool.getTxOutput(spend.utxo);
+                    if (output == null)
+                        return false;
+                    spentFromPool.put(spend.utxo, output);
+                }
+                spentOutputs[spend.tx][spend.input] = output;
+            }
+            return true;
+        }
+
+        private boolean commit(UTXOPool pool) {
+            for (UTXO utxo : spentFromPool.keySet())
+                pool.removeUTXO(utxo);
+            for (Map.Entry<UTXO, Transaction.Output> entry : created.entrySet())
+                pool.addUTXO(entry.getKey(), entry.getValue());
+            return true;
+        }
+    }
+}
@@ -28,7 +28,7 @@ public class Test {
             int numOutput = random.nextInt(maxValueOutput) + 1;
             
             for (int j = 0; j < numOutput; j++){
-                double value = random.nextDouble() + 1;
+                long value = (long) ((random.nextDouble() + 1) * Transaction.COIN);
                 tx.addOutput(value, scroogeKeyPair.getPublic());    // assign all coins to scrooge
             }
             tx.finalize();
@@ -47,8 +47,8 @@ public class Test {
         UTXO utxo = utxoPool.getAllUTXO().get(0);
         validTx.addInput(utxo.getTxHash(), utxo.getIndex());
         // assign whole input to alice
-        double inputValue = utxoPool.getTxOutput(utxo).value;
-        double outputValue = inputValue;
+        long inputValue = utxoPool.getTxOutput(utxo).value;
+        long outputValue = inputValue;
         validTx.addOutput(outputValue, aliceKeyPair.getPublic());
         // uncommenting the next line tests for doublespending within one transaction
 //        validTx.addOutput(outputValue, bobKeyPair.getPublic());
@@ -84,7 +84,7 @@ public class Test {
 
 
         Transaction validTransaction = new Transaction();
-        validTransaction.addOutput(1,aliceKeyPair.getPublic());
+        validTransaction.addOutput(Transaction.COIN,aliceKeyPair.getPublic());
         validTransaction.finalize();
         blockHandler.processTx(validTransaction);
         System.out.println("Transactions in the blockchain txPool: " + blockChain.getTransactionPool().getTransactions().size());
@@ -122,6 +122,55 @@ public class Test {
         blockHandler.createBlock(aliceKeyPair.getPublic());
         System.out.println("Blockchain: " + blockChain.printBlockChain()+ "\n");
 
-        System.out.println("Max Height: " + blockChain.nodesOfBlockChain.get(blockChain.getMaxHeightBlock().getHash()).getHeight());
+        System.out.println("Max Height: " + blockChain.nodesOfBlockChain.get(blockChain.getMaxHeightBlock().getHash256()).getHeight());
+
+        // Compact block relay between two chains: the receiver rebuilds the block from its own pool
+        Block relayGenesis = new Block(null, scroogeKeyPair.getPublic());
+        relayGenesis.finalize();
+        BlockChain senderChain = new BlockChain(relayGenesis);
+        BlockChain receiverChain = new BlockChain(relayGenesis);
+        BlockHandler sender = new BlockHandler(senderChain);
+        BlockHandler receiver = new BlockHandler(receiverChain);
+        int[] fetched = new int[1];
+
+        Transaction toAlice = new Transaction();
+        toAlice.addInput(relayGenesis.getCoinbase().getHash(), 0);
+        toAlice.addOutput(Block.COINBASE, aliceKeyPair.getPublic());
+        signature.initSign(scroogeKeyPair.getPrivate());
+        signature.update(toAlice.getRawDataToSign(0));
+        toAlice.addSignature(signature.sign(), 0);
+        toAlice.finalize();
+        // both nodes saw the transaction, so every short id is found in the receiver's pool
+        sender.processTx(toAlice);
+        receiver.processTx(toAlice);
+        Block relayed = sender.createBlock(bobKeyPair.getPublic());
+        CompactBlock compact = CompactBlock.parse(CompactBlock.of(relayed).serialize());
+        boolean added = receiver.processCompactBlock(compact, positions -> {
+            fetched[0] += positions.length;
+            return CompactBlock.transactionsAt(relayed, positions);
+        });
+        System.out.println("Compact block rebuilt from the pool: " + added + ", transactions fetched: " + fetched[0]);
+
+        Transaction toBob = new Transaction();
+        toBob.addInput(toAlice.getHash(), 0);
+        toBob.addOutput(Block.COINBASE, bobKeyPair.getPublic());
+        signature.initSign(aliceKeyPair.getPrivate());
+        signature.update(toBob.getRawDataToSign(0));
+        toBob.addSignature(signature.sign(), 0);
+        toBob.finalize();
+        // only the sender saw this one, the receiver has to fetch it
+        sender.processTx(toBob);
+        Block relayedMissing = sender.createBlock(aliceKeyPair.getPublic());
+        fetched[0] = 0;
+        compact = CompactBlock.parse(CompactBlock.of(relayedMissing).serialize());
+        added = receiver.processCompactBlock(compact, positions -> {
+            fetched[0] += positions.length;
+            return CompactBlock.transactionsAt(relayedMissing, positions);
+        });
+        System.out.println("Compact block with a missing transaction: " + added + ", transactions fetched: " + fetched[0]);
+        System.out.println("Same tip on both chains: "
+                + senderChain.getMaxHeightHash256().equals(receiverChain.getMaxHeightHash256()) + "\n");
+        sender.close();
+        receiver.close();
     }
 }
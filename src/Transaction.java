@@ -1,4 +1,5 @@
 
+import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -9,6 +10,12 @@ import java.util.Arrays;
 
 public class Transaction {
 
+    /** base units per coin, all amounts are whole numbers of base units */
+    public static final long COIN = 100_000_000L;
+
+    /** output index of the input of a coinbase, which names the parent block and spends nothing */
+    public static final int COINBASE_INPUT_INDEX = -1;
+
     public class Input {
         /** hash of the Transaction whose output is being used */
         public byte[] prevTxHash;
@@ -42,21 +49,9 @@ public class Transaction {
 
             Input in = (Input) other;
 
-            if (prevTxHash.length != in.prevTxHash.length)
-                return false;
-            for (int i = 0; i < prevTxHash.length; i++) {
-                if (prevTxHash[i] != in.prevTxHash[i])
-                    return false;
-            }
-            if (outputIndex != in.outputIndex)
-                return false;
-            if (signature.length != in.signature.length)
-                return false;
-            for (int i = 0; i < signature.length; i++) {
-                if (signature[i] != in.signature[i])
-                    return false;
-            }
-            return true;
+            //the input of a coinbase has no signature
+            return Arrays.equals(prevTxHash, in.prevTxHash) && outputIndex == in.outputIndex
+                    && Arrays.equals(signature, in.signature);
         }
 
         public int hashCode() {
@@ -69,12 +64,12 @@ public class Transaction {
     }
 
     public class Output {
-        /** value in bitcoins of the output */
-        public double value;
+        /** value of the output in base units, see {@link Transaction#COIN} */
+        public long value;
         /** the address or public key of the recipient */
         public PublicKey address;
 
-        public Output(double v, PublicKey addr) {
+        public Output(long v, PublicKey addr) {
             value = v;
             address = addr;
         }
@@ -102,7 +97,7 @@ public class Transaction {
 
         public int hashCode() {
             int hash = 1;
-            hash = hash * 17 + (int) value * 10000;
+            hash = hash * 17 + Long.hashCode(value);
             hash = hash * 31 + ((RSAPublicKey) address).getPublicExponent().hashCode();
             hash = hash * 31 + ((RSAPublicKey) address).getModulus().hashCode();
             return hash;
@@ -111,6 +106,8 @@ public class Transaction {
 
     /** hash of the transaction, its unique id */
     private byte[] hash;
+    /** {@code hash} as a {@link Hash256}, created on first use */
+    private Hash256 hash256;
     private ArrayList<Input> inputs;
     private ArrayList<Output> outputs;
     private boolean coinbase;
@@ -123,16 +120,33 @@ public class Transaction {
 
     public Transaction(Transaction tx) {
         hash = tx.hash.clone();
-        inputs = new ArrayList<Input>(tx.inputs);
-        outputs = new ArrayList<Output>(tx.outputs);
+        inputs = new ArrayList<Input>(tx.getInputs());
+        outputs = new ArrayList<Output>(tx.getOutputs());
         coinbase = false;
     }
 
+    /** for subclasses that supply the inputs and outputs by overriding the getters */
+    protected Transaction(byte[] hash, boolean coinbase) {
+        this.hash = hash;
+        this.coinbase = coinbase;
+    }
+
     /** create a coinbase transaction of value {@code coin} and calls finalize on it */
-    public Transaction(double coin, PublicKey address) {
+    public Transaction(long coin, PublicKey address) {
+        this(coin, address, null);
+    }
+
+    /**
+     * Same as {@link #Transaction(long, PublicKey)}, with one input naming {@code prevBlockHash},
+     * the parent of the block the coinbase goes into, so coinbases paying the same amount to the
+     * same address still have different hashes within one chain. No input if it is null.
+     */
+    public Transaction(long coin, PublicKey address, byte[] prevBlockHash) {
         coinbase = true;
         inputs = new ArrayList<Input>();
         outputs = new ArrayList<Output>();
+        if (prevBlockHash != null)
+            addInput(prevBlockHash, COINBASE_INPUT_INDEX);
         addOutput(coin, address);
         finalize();
     }
@@ -146,7 +160,7 @@ public class Transaction {
         inputs.add(in);
     }
 
-    public void addOutput(double value, PublicKey address) {
+    public void addOutput(long value, PublicKey address) {
         Output op = new Output(value, address);
         outputs.add(op);
     }
@@ -158,8 +172,8 @@ public class Transaction {
     public void removeInput(UTXO ut) {
         for (int i = 0; i < inputs.size(); i++) {
             Input in = inputs.get(i);
-            UTXO u = new UTXO(in.prevTxHash, in.outputIndex);
-            if (u.equals(ut)) {
+            Hash256 prevTxHash = Hash256.tryOf(in.prevTxHash);
+            if (prevTxHash != null && new UTXO(prevTxHash, in.outputIndex).equals(ut)) {
                 inputs.remove(i);
                 return;
             }
@@ -169,9 +183,9 @@ public class Transaction {
     public byte[] getRawDataToSign(int index) {
         // ith input and all outputs
         ArrayList<Byte> sigData = new ArrayList<Byte>();
-        if (index > inputs.size())
+        if (index > numInputs())
             return null;
-        Input in = inputs.get(index);
+        Input in = getInput(index);
         byte[] prevTxHash = in.prevTxHash;
         ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
         b.putInt(in.outputIndex);
@@ -181,9 +195,9 @@ public class Transaction {
                 sigData.add(prevTxHash[i]);
         for (int i = 0; i < outputIndex.length; i++)
             sigData.add(outputIndex[i]);
-        for (Output op : outputs) {
-            ByteBuffer bo = ByteBuffer.allocate(Double.SIZE / 8);
-            bo.putDouble(op.value);
+        for (Output op : getOutputs()) {
+            ByteBuffer bo = ByteBuffer.allocate(Long.SIZE / 8);
+            bo.putLong(op.value);
             byte[] value = bo.array();
             byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
             byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
@@ -206,40 +220,25 @@ public class Transaction {
     }
 
     public byte[] getRawTx() {
-        ArrayList<Byte> rawTx = new ArrayList<Byte>();
+        return rawTx(getInputs(), getOutputs());
+    }
+
+    /** @return the bytes {@link #getRawTx} hashes, for the given inputs and outputs */
+    static byte[] rawTx(ArrayList<Input> inputs, ArrayList<Output> outputs) {
+        ByteArrayOutputStream rawTx = new ByteArrayOutputStream();
         for (Input in : inputs) {
-            byte[] prevTxHash = in.prevTxHash;
-            ByteBuffer b = ByteBuffer.allocate(Integer.SIZE / 8);
-            b.putInt(in.outputIndex);
-            byte[] outputIndex = b.array();
-            byte[] signature = in.signature;
-            if (prevTxHash != null)
-                for (int i = 0; i < prevTxHash.length; i++)
-                    rawTx.add(prevTxHash[i]);
-            for (int i = 0; i < outputIndex.length; i++)
-                rawTx.add(outputIndex[i]);
-            if (signature != null)
-                for (int i = 0; i < signature.length; i++)
-                    rawTx.add(signature[i]);
+            if (in.prevTxHash != null)
+                rawTx.writeBytes(in.prevTxHash);
+            rawTx.writeBytes(ByteBuffer.allocate(Integer.BYTES).putInt(in.outputIndex).array());
+            if (in.signature != null)
+                rawTx.writeBytes(in.signature);
         }
         for (Output op : outputs) {
-            ByteBuffer b = ByteBuffer.allocate(Double.SIZE / 8);
-            b.putDouble(op.value);
-            byte[] value = b.array();
-            byte[] addressExponent = ((RSAPublicKey) op.address).getPublicExponent().toByteArray();
-            byte[] addressModulus = ((RSAPublicKey) op.address).getModulus().toByteArray();
-            for (int i = 0; i < value.length; i++)
-                rawTx.add(value[i]);
-            for (int i = 0; i < addressExponent.length; i++)
-                rawTx.add(addressExponent[i]);
-            for (int i = 0; i < addressModulus.length; i++)
-                rawTx.add(addressModulus[i]);
+            rawTx.writeBytes(ByteBuffer.allocate(Long.BYTES).putLong(op.value).array());
+            rawTx.writeBytes(((RSAPublicKey) op.address).getPublicExponent().toByteArray());
+            rawTx.writeBytes(((RSAPublicKey) op.address).getModulus().toByteArray());
         }
-        byte[] tx = new byte[rawTx.size()];
-        int i = 0;
-        for (Byte b : rawTx)
-            tx[i++] = b;
-        return tx;
+        return rawTx.toByteArray();
     }
 
     public void finalize() {
@@ -247,19 +246,45 @@ public class Transaction {
             MessageDigest md = MessageDigest.getInstance("SHA-256");
             md.update(getRawTx());
             hash = md.digest();
+            hash256 = null;
         } catch (NoSuchAlgorithmException x) {
             x.printStackTrace(System.err);
         }
     }
 
+    /**
+     * @return true if the hash is the SHA-256 of the raw transaction, false if it is missing or
+     *         was set to something else
+     */
+    public boolean hasValidHash() {
+        byte[] h = getHash();
+        if (h == null)
+            return false;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            return MessageDigest.isEqual(h, md.digest(getRawTx()));
+        } catch (NoSuchAlgorithmException x) {
+            x.printStackTrace(System.err);
+            return false;
+        }
+    }
+
     public void setHash(byte[] h) {
         hash = h;
+        hash256 = null;
     }
 
     public byte[] getHash() {
         return hash;
     }
 
+    /** @return the hash as a {@link Hash256}, null if it is missing or not 32 bytes long */
+    public Hash256 getHash256() {
+        if (hash256 == null && hash != null)
+            hash256 = Hash256.tryOf(hash);
+        return hash256;
+    }
+
     public ArrayList<Input> getInputs() {
         return inputs;
     }
@@ -268,33 +293,44 @@ public class Transaction {
         return outputs;
     }
 
+    /**
+     * @return the sum of the output values
+     * @throws ArithmeticException if the sum does not fit into a {@code long}
+     */
+    public long sumOutputs() {
+        long sum = 0;
+        for (Output op : getOutputs())
+            sum = Math.addExact(sum, op.value);
+        return sum;
+    }
+
     public Input getInput(int index) {
-        if (index < inputs.size()) {
-            return inputs.get(index);
+        if (index < getInputs().size()) {
+            return getInputs().get(index);
         }
         return null;
     }
 
     public Output getOutput(int index) {
-        if (index < outputs.size()) {
-            return outputs.get(index);
+        if (index < getOutputs().size()) {
+            return getOutputs().get(index);
         }
         return null;
     }
 
     public int numInputs() {
-        return inputs.size();
+        return getInputs().size();
     }
 
     public int numOutputs() {
-        return outputs.size();
+        return getOutputs().size();
     }
 
     public boolean equals(Object other) {
         if (other == null) {
             return false;
         }
-        if (getClass() != other.getClass()) {
+        if (!(other instanceof Transaction)) {
             return false;
         }
 
@@ -1,32 +1,144 @@
-
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 public class TransactionPool {
 
-    private HashMap<ByteArrayWrapper, Transaction> H;
+    private static final int INITIAL_FILTER_CAPACITY = 1024;
+    private static final double FILTER_FP_RATE = 0.01;
+
+    /** in arrival order, so the oldest transactions are evicted first */
+    private LinkedHashMap<Hash256, Transaction> H;
+
+    /** Holds the hash of every transaction in {@code H}, rebuilt larger once the pool outgrows it */
+    private CountingBloomFilter filter;
+
+    /** receives accept, evict and confirm events, null for pools nobody listens to */
+    private ChainEventBus events;
+
+    /** estimated bytes retained by the transactions in {@code H} */
+    private long estimatedBytes;
+
+    /** evict the oldest transactions once {@code estimatedBytes} exceeds this, 0 for no limit */
+    private long softLimit;
+    private long evicted;
 
     public TransactionPool() {
-        H = new HashMap<ByteArrayWrapper, Transaction>();
+        H = new LinkedHashMap<Hash256, Transaction>();
+        filter = new CountingBloomFilter(INITIAL_FILTER_CAPACITY, FILTER_FP_RATE);
     }
 
+    /** copy the transactions of {@code txPool}; the copy has no soft limit and publishes no events */
     public TransactionPool(TransactionPool txPool) {
-        H = new HashMap<ByteArrayWrapper, Transaction>(txPool.H);
+        H = new LinkedHashMap<Hash256, Transaction>(txPool.H);
+        filter = new CountingBloomFilter(txPool.filter);
+        estimatedBytes = txPool.estimatedBytes;
     }
 
-    public void addTransaction(Transaction tx) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(tx.getHash());
+    /** @return false if a transaction with the same hash is already in the pool */
+    public boolean addTransaction(Transaction tx) {
+        Hash256 hash = tx.getHash256();
+        if (contains(hash))
+            return false;
         H.put(hash, tx);
+        filter.add(hash.longHashCode());
+        estimatedBytes += entryBytes(tx);
+        if (events != null)
+            events.publishTransaction(ChainEvent.Type.TX_ACCEPTED, tx);
+        if (softLimit > 0)
+            evictOverLimit();
+        if (H.size() > filter.capacity()) {
+            filter = new CountingBloomFilter(2 * H.size(), FILTER_FP_RATE);
+            for (Hash256 h : H.keySet())
+                filter.add(h.longHashCode());
+        }
+        return true;
     }
 
     public void removeTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        H.remove(hash);
+        Hash256 hash = Hash256.tryOf(txHash);
+        if (hash != null)
+            removeTransaction(hash);
+    }
+
+    public void removeTransaction(Hash256 txHash) {
+        remove(txHash, ChainEvent.Type.TX_EVICTED);
+    }
+
+    /** remove the transaction with hash {@code txHash} because a block confirmed it */
+    public void confirmTransaction(Hash256 txHash) {
+        remove(txHash, ChainEvent.Type.TX_CONFIRMED);
+    }
+
+    private void remove(Hash256 txHash, ChainEvent.Type type) {
+        if (!filter.mightContain(txHash.longHashCode()))
+            return;
+        Transaction removed = H.remove(txHash);
+        if (removed != null) {
+            filter.remove(txHash.longHashCode());
+            estimatedBytes -= entryBytes(removed);
+            if (events != null)
+                events.publishTransaction(type, removed);
+        }
+    }
+
+    private static long entryBytes(Transaction tx) {
+        return MemoryEstimator.LINKED_HASH_MAP_ENTRY + MemoryEstimator.transaction(tx);
+    }
+
+    // drop the oldest transactions until the pool fits into the soft limit again, keeping at least one
+    private void evictOverLimit() {
+        Iterator<Transaction> oldest = H.values().iterator();
+        while (estimatedBytes > softLimit && H.size() > 1) {
+            Transaction tx = oldest.next();
+            oldest.remove();
+            filter.remove(tx.getHash256().longHashCode());
+            estimatedBytes -= entryBytes(tx);
+            evicted++;
+            if (events != null)
+                events.publishTransaction(ChainEvent.Type.TX_EVICTED, tx);
+        }
+    }
+
+    /** @return the estimated number of bytes the transactions in the pool retain */
+    public long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    /**
+     * Evict the oldest transactions whenever the pool's estimated size exceeds {@code bytes}; 0
+     * removes the limit
+     */
+    public void setSoftLimit(long bytes) {
+        softLimit = bytes;
+        if (softLimit > 0)
+            evictOverLimit();
+    }
+
+    /** @return number of transactions evicted because of the soft limit */
+    public long getEvicted() {
+        return evicted;
+    }
+
+    /** publish accepted, evicted and confirmed transactions on {@code events}, null to stop */
+    public void setEventBus(ChainEventBus events) {
+        this.events = events;
     }
 
     public Transaction getTransaction(byte[] txHash) {
-        ByteArrayWrapper hash = new ByteArrayWrapper(txHash);
-        return H.get(hash);
+        Hash256 hash = Hash256.tryOf(txHash);
+        return hash == null ? null : getTransaction(hash);
+    }
+
+    public Transaction getTransaction(Hash256 txHash) {
+        if (!filter.mightContain(txHash.longHashCode()))
+            return null;
+        return H.get(txHash);
+    }
+
+    /** @return true if the transaction with hash {@code txHash} is in the pool */
+    public boolean contains(Hash256 txHash) {
+        return filter.mightContain(txHash.longHashCode()) && H.containsKey(txHash);
     }
 
     public ArrayList<Transaction> getTransactions() {
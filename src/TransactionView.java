@@ -0,0 +1,265 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Read-only {@link Transaction} inside a {@link BlockView}. Only the hash and the coinbase flag are
+ * read up front; the inputs and the outputs are decoded together the first time either is
+ * accessed and checked against the hash then. Addresses are looked up in a cache shared by all
+ * views before being decoded again.
+ *
+ * <p>
+ * Record layout: the 32 byte hash, a coinbase flag byte, the buffer offset of the outputs, the
+ * number of inputs and for each a flag byte followed by the 32 byte previous transaction hash if
+ * the flag is 1, the output index and the signature length (-1 for none) followed by the
+ * signature. Then the number of outputs and for each the value in base units as a long and the length
+ * prefixed public exponent and modulus of the address.
+ */
+final class TransactionView extends Transaction {
+
+    private static final int HEADER_SIZE = Hash256.BYTES + 1 + Integer.BYTES;
+
+    /** addresses decoded most recently, by their serialized form; blocks keep paying the same keys */
+    private static final int KEY_CACHE_SIZE = 4096;
+    private static final Map<ByteArrayWrapper, PublicKey> KEYS = Collections.synchronizedMap(
+            new LinkedHashMap<ByteArrayWrapper, PublicKey>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<ByteArrayWrapper, PublicKey> eldest) {
+                    return size() > KEY_CACHE_SIZE;
+                }
+            });
+
+    private final ByteBuffer buffer;
+    private final int offset;
+    private volatile ArrayList<Input> inputs;
+    private volatile ArrayList<Output> outputs;
+
+    /** view the record at {@code offset} of {@code buffer} */
+    TransactionView(ByteBuffer buffer, int offset) {
+        super(readHash(buffer, offset), buffer.get(offset + Hash256.BYTES) == 1);
+        this.buffer = buffer;
+        this.offset = offset;
+    }
+
+    private static byte[] readHash(ByteBuffer buffer, int offset) {
+        byte[] hash = new byte[Hash256.BYTES];
+        buffer.get(offset, hash);
+        return hash;
+    }
+
+    /** write the record of {@code tx}, which starts at offset {@code start} of the block buffer */
+    static void write(Transaction tx, DataOutputStream out, int start) throws IOException {
+        if (tx.getHash() == null)
+            throw new IllegalArgumentException("transaction is not finalized");
+        ByteArrayOutputStream inputBytes = new ByteArrayOutputStream();
+        DataOutputStream in = new DataOutputStream(inputBytes);
+        in.writeInt(tx.numInputs());
+        for (Input input : tx.getInputs()) {
+            if (input.prevTxHash == null) {
+                in.writeByte(0);
+            } else {
+                in.writeByte(1);
+                in.write(input.prevTxHash);
+            }
+            in.writeInt(input.outputIndex);
+            writeBytes(in, input.signature);
+        }
+
+        out.write(tx.getHash());
+        out.writeByte(tx.isCoinbase() ? 1 : 0);
+        out.writeInt(start + HEADER_SIZE + in.size());
+        inputBytes.writeTo(out);
+        out.writeInt(tx.numOutputs());
+        for (Output op : tx.getOutputs()) {
+            out.writeLong(op.value);
+            writeBytes(out, ((RSAPublicKey) op.address).getPublicExponent().toByteArray());
+            writeBytes(out, ((RSAPublicKey) op.address).getModulus().toByteArray());
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    public ArrayList<Input> getInputs() {
+        ArrayList<Input> decoded = inputs;
+        if (decoded == null) {
+            decode();
+            decoded = inputs;
+        }
+        return decoded;
+    }
+
+    public ArrayList<Output> getOutputs() {
+        ArrayList<Output> decoded = outputs;
+        if (decoded == null) {
+            decode();
+            decoded = outputs;
+        }
+        return decoded;
+    }
+
+    /** the hash is checked against the record when it is decoded */
+    public boolean hasValidHash() {
+        try {
+            getInputs();
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Decode the inputs and the outputs together and check them against the stored hash.
+     *
+     * @throws IllegalArgumentException if the record is malformed or does not match its hash
+     */
+    private void decode() {
+        ArrayList<Input> in;
+        ArrayList<Output> out;
+        try {
+            in = decodeInputs();
+            out = decodeOutputs();
+        } catch (IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("truncated transaction record", e);
+        }
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            if (!MessageDigest.isEqual(getHash(), md.digest(rawTx(in, out))))
+                throw new IllegalArgumentException("transaction record does not match its hash");
+        } catch (NoSuchAlgorithmException x) {
+            x.printStackTrace(System.err);
+        }
+        outputs = out;
+        inputs = in;
+    }
+
+    private ArrayList<Input> decodeInputs() {
+        int pos = offset + HEADER_SIZE;
+        int count = readCount(pos);
+        pos += Integer.BYTES;
+        ArrayList<Input> decoded = new ArrayList<Input>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] prevTxHash = null;
+            if (buffer.get(pos++) == 1) {
+                prevTxHash = new byte[Hash256.BYTES];
+                buffer.get(pos, prevTxHash);
+                pos += Hash256.BYTES;
+            }
+            Input input = new Input(null, buffer.getInt(pos));
+            input.prevTxHash = prevTxHash; //already a private copy
+            pos += Integer.BYTES;
+            input.signature = readBytes(pos);
+            pos += Integer.BYTES + (input.signature == null ? 0 : input.signature.length);
+            decoded.add(input);
+        }
+        return decoded;
+    }
+
+    private ArrayList<Output> decodeOutputs() {
+        int pos = buffer.getInt(offset + Hash256.BYTES + 1);
+        int count = readCount(pos);
+        pos += Integer.BYTES;
+        ArrayList<Output> decoded = new ArrayList<Output>(count);
+        for (int i = 0; i < count; i++) {
+            long value = buffer.getLong(pos);
+            pos += Long.BYTES;
+            int modulusAt = pos + Integer.BYTES + readLength(pos);
+            int end = modulusAt + Integer.BYTES + readLength(modulusAt);
+            byte[] encoded = new byte[end - pos];
+            buffer.get(pos, encoded);
+            pos = end;
+            decoded.add(new Output(value, toPublicKey(encoded)));
+        }
+        return decoded;
+    }
+
+    private int readCount(int pos) {
+        int count = buffer.getInt(pos);
+        if (count < 0 || count > buffer.limit() - pos)
+            throw new IllegalArgumentException("bad count " + count + " in transaction record");
+        return count;
+    }
+
+    private int readLength(int pos) {
+        int length = buffer.getInt(pos);
+        if (length < 0)
+            throw new IllegalArgumentException("address missing in serialized output");
+        return length;
+    }
+
+    private byte[] readBytes(int pos) {
+        int length = buffer.getInt(pos);
+        if (length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        buffer.get(pos + Integer.BYTES, bytes);
+        return bytes;
+    }
+
+    /** @return the address serialized as length prefixed exponent and modulus in {@code encoded} */
+    private static PublicKey toPublicKey(byte[] encoded) {
+        ByteArrayWrapper key = new ByteArrayWrapper(encoded);
+        PublicKey address = KEYS.get(key);
+        if (address != null)
+            return address;
+        ByteBuffer fields = ByteBuffer.wrap(encoded);
+        byte[] exponent = new byte[fields.getInt()];
+        fields.get(exponent);
+        byte[] modulus = new byte[fields.getInt()];
+        fields.get(modulus);
+        try {
+            RSAPublicKeySpec spec = new RSAPublicKeySpec(new BigInteger(modulus), new BigInteger(exponent));
+            address = KeyFactory.getInstance("RSA").generatePublic(spec);
+        } catch (GeneralSecurityException | NumberFormatException e) {
+            throw new IllegalArgumentException("bad address in serialized output", e);
+        }
+        KEYS.put(key, address);
+        return address;
+    }
+
+    public void addInput(byte[] prevTxHash, int outputIndex) {
+        throw new UnsupportedOperationException("transaction view is read-only");
+    }
+
+    public void addOutput(long value, PublicKey address) {
+        throw new UnsupportedOperationException("transaction view is read-only");
+    }
+
+    public void removeInput(int index) {
+        throw new UnsupportedOperationException("transaction view is read-only");
+    }
+
+    public void removeInput(UTXO ut) {
+        throw new UnsupportedOperationException("transaction view is read-only");
+    }
+
+    public void addSignature(byte[] signature, int index) {
+        throw new UnsupportedOperationException("transaction view is read-only");
+    }
+
+    public void setHash(byte[] h) {
+        throw new UnsupportedOperationException("transaction view is read-only");
+    }
+
+    /** the hash is part of the record, there is nothing to compute */
+    public void finalize() {
+    }
+}
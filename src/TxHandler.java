@@ -1,17 +1,45 @@
 import java.security.PublicKey;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 
 public class TxHandler {
     
     private UTXOPool utxoPool;
 
+    /** hashes of transactions whose input signatures were already checked elsewhere */
+    private Set<Hash256> verifiedTxs;
+
+    /** records every change {@link #handleTxs} makes to the pool, may be null */
+    private BlockUndo journal;
+
     /**
      * Creates a public ledger whose current UTXOPool (collection of unspent transaction outputs) is
      * {@code utxoPool}. This should make a copy of utxoPool by using the UTXOPool(UTXOPool uPool)
      * constructor.
      */
     public TxHandler(UTXOPool utxoPool) {
+        this(utxoPool, Collections.emptySet());
+    }
+
+    /**
+     * Same as {@link #TxHandler(UTXOPool)}, but skips the signature checks of the transactions
+     * whose hashes are in {@code verifiedTxs}.
+     */
+    TxHandler(UTXOPool utxoPool, Set<Hash256> verifiedTxs) {
         this.utxoPool = new UTXOPool(utxoPool);
+        this.verifiedTxs = verifiedTxs;
+    }
+
+    /**
+     * Works directly on {@code utxoPool} instead of a copy and records every change
+     * {@link #handleTxs} makes to it in {@code journal}, so the caller can revert them.
+     */
+    TxHandler(UTXOPool utxoPool, Set<Hash256> verifiedTxs, BlockUndo journal) {
+        this.utxoPool = utxoPool;
+        this.verifiedTxs = verifiedTxs;
+        this.journal = journal;
     }
 
     /**
@@ -24,19 +52,24 @@ public class TxHandler {
      *     values; and false otherwise.
      */
     public boolean isValidTx(Transaction tx) {
-        double sumInputs = 0.0;
-        double sumOutputs = 0.0;
+        long sumInputs = 0;
         UTXOPool alreadySeenUTXOs = new UTXOPool();
+        boolean checkSignatures = verifiedTxs.isEmpty() || tx.getHash() == null
+                || !verifiedTxs.contains(tx.getHash256());
         ArrayList<Transaction.Input> allInputsOfTx = tx.getInputs();
         for(int i = 0; i < allInputsOfTx.size(); i++){
             Transaction.Input oneInputOfTx = allInputsOfTx.get(i);
-            UTXO utxo = new UTXO(oneInputOfTx.prevTxHash, oneInputOfTx.outputIndex);
+            Hash256 prevTxHash = Hash256.tryOf(oneInputOfTx.prevTxHash);
+            if (prevTxHash == null){
+                return false;
+            }
+            UTXO utxo = new UTXO(prevTxHash, oneInputOfTx.outputIndex);
             Transaction.Output utxoOutput = this.utxoPool.getTxOutput(utxo);
             if (utxoOutput == null){
                 return false;
             }
             PublicKey recipientsAddress = utxoOutput.address;
-            if(!(oneInputOfTx.signature == null) && !Crypto.verifySignature(recipientsAddress, tx.getRawDataToSign(i), oneInputOfTx.signature)){
+            if(checkSignatures && !(oneInputOfTx.signature == null) && !Crypto.verifySignature(recipientsAddress, tx.getRawDataToSign(i), oneInputOfTx.signature)){
                 return false;
             }
             if(alreadySeenUTXOs.contains(utxo)){
@@ -44,22 +77,83 @@ public class TxHandler {
             }
             alreadySeenUTXOs.addUTXO(utxo, utxoOutput);
             
-            sumInputs += utxoOutput.value;
+            try {
+                sumInputs = Math.addExact(sumInputs, utxoOutput.value);
+            } catch (ArithmeticException overflow) {
+                return false;
+            }
         }
         ArrayList<Transaction.Output> allOutputsOfTx = tx.getOutputs();
         for (Transaction.Output oneOutputofTx : allOutputsOfTx){
-            if(oneOutputofTx.value < 0.0){
+            if(oneOutputofTx.value < 0){
                 return false;
             }
-            sumOutputs += oneOutputofTx.value;
         }
-        if(sumInputs >= sumOutputs){
-            return true;
+        try {
+            return sumInputs >= tx.sumOutputs();
+        } catch (ArithmeticException overflow) {
+            return false;
         }
-        return false;
     }
 
-    
+
+    /**
+     * @return why {@code tx} can never become valid, or null if it is valid or some of the outputs
+     *         it claims are not in the current UTXO pool, so it may become valid later. Signatures
+     *         of transactions in the verified set are not checked again.
+     */
+    public RejectionCache.Reason getPermanentRejectReason(Transaction tx) {
+        boolean checkSignatures = verifiedTxs.isEmpty() || !verifiedTxs.contains(tx.getHash256());
+        for (Transaction.Output op : tx.getOutputs()) {
+            if (op.value < 0) {
+                return RejectionCache.Reason.NEGATIVE_OUTPUT;
+            }
+        }
+        long sumOutputs;
+        try {
+            sumOutputs = tx.sumOutputs();
+        } catch (ArithmeticException overflow) {
+            return RejectionCache.Reason.MALFORMED;
+        }
+        Set<UTXO> claimed = new HashSet<>();
+        Transaction.Output[] spent = new Transaction.Output[tx.numInputs()];
+        boolean allKnown = true;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            Transaction.Input in = tx.getInput(i);
+            Hash256 prevTxHash = Hash256.tryOf(in.prevTxHash);
+            if (prevTxHash == null) {
+                return RejectionCache.Reason.MALFORMED;
+            }
+            UTXO utxo = new UTXO(prevTxHash, in.outputIndex);
+            if (!claimed.add(utxo)) {
+                return RejectionCache.Reason.DOUBLE_SPEND;
+            }
+            spent[i] = utxoPool.getTxOutput(utxo);
+            allKnown &= spent[i] != null;
+        }
+        //the output an outpoint refers to never changes, so checks against it are final
+        long sumInputs = 0;
+        for (int i = 0; i < tx.numInputs(); i++) {
+            if (spent[i] == null) {
+                continue;
+            }
+            Transaction.Input in = tx.getInput(i);
+            if (checkSignatures && in.signature != null
+                    && !Crypto.verifySignature(spent[i].address, tx.getRawDataToSign(i), in.signature)) {
+                return RejectionCache.Reason.BAD_SIGNATURE;
+            }
+            try {
+                sumInputs = Math.addExact(sumInputs, spent[i].value);
+            } catch (ArithmeticException overflow) {
+                return RejectionCache.Reason.MALFORMED;
+            }
+        }
+        if (allKnown && sumInputs < sumOutputs) {
+            return RejectionCache.Reason.INSUFFICIENT_INPUTS;
+        }
+        return null;
+    }
+
     /**
      * Handles each epoch by receiving an unordered array of proposed transactions,
      * (1) checking each transaction for correctness,
@@ -68,20 +162,29 @@ public class TxHandler {
      */
     public Transaction[] handleTxs(Transaction[] possibleTxs) {
         ArrayList<Transaction> acceptedTXs = new ArrayList<>();
+        boolean[] accepted = new boolean[possibleTxs.length];
         boolean addedNewUTXO;
         do{
             addedNewUTXO = false;
-            for(Transaction tx : possibleTxs){
-                if(isValidTx(tx)){
+            for(int t = 0; t < possibleTxs.length; t++){
+                Transaction tx = possibleTxs[t];
+                if(!accepted[t] && isValidTx(tx)){
+                    accepted[t] = true;
                     acceptedTXs.add(tx);
                     addedNewUTXO = true;
                     for(Transaction.Input txInput : tx.getInputs()){
                         UTXO utxo = new UTXO(txInput.prevTxHash, txInput.outputIndex);
+                        if(journal != null){
+                            journal.spend(utxo, utxoPool.getTxOutput(utxo));
+                        }
                         utxoPool.removeUTXO(utxo);
                     }
                     for(int i = 0; i < tx.getOutputs().size(); i++){
                         Transaction.Output txOutput = tx.getOutput(i);
-                        UTXO utxo = new UTXO(tx.getHash(), i);
+                        UTXO utxo = new UTXO(tx.getHash256(), i);
+                        if(journal != null){
+                            journal.create(utxo, txOutput);
+                        }
                         utxoPool.addUTXO(utxo, txOutput);
                     }
                 }
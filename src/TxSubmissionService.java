@@ -0,0 +1,269 @@
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process front-end for submitting transactions from many concurrent clients. {@link #submit}
+ * never blocks the caller: a transaction goes into a bounded admission queue, or, while the queue
+ * is full, waits on a virtual thread for room. Once too many are waiting, new submissions are
+ * turned away as {@link Status#OVERLOADED}. A single validator thread drains the queue in batches
+ * and hands each batch to {@link BlockChain#addTransactions}, which verifies the signatures in
+ * parallel outside the chain's lock.
+ *
+ * <p>
+ * Virtual threads need Java 21. On older runtimes the waiting submissions are parked on a small
+ * pool of platform threads instead, with the same limits.
+ */
+public class TxSubmissionService {
+
+    public enum Status {
+        /** the transaction entered the transaction pool */
+        ACCEPTED,
+        /** a transaction with the same hash was in the pool already */
+        DUPLICATE,
+        /** the transaction can never be valid, see {@link Result#getReason} */
+        REJECTED,
+        /** admission queue and waiting room were full */
+        OVERLOADED,
+        /** the service was closed before the transaction was validated */
+        CLOSED
+    }
+
+    public static final class Result {
+        private final Status status;
+        private final RejectionCache.Reason reason;
+
+        private Result(Status status, RejectionCache.Reason reason) {
+            this.status = status;
+            this.reason = reason;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public boolean isAccepted() {
+            return status == Status.ACCEPTED;
+        }
+
+        /** @return why the transaction was rejected, null unless the status is REJECTED */
+        public RejectionCache.Reason getReason() {
+            return reason;
+        }
+
+        public String toString() {
+            return reason == null ? status.toString() : status + " " + reason;
+        }
+    }
+
+    private static final Result ACCEPTED = new Result(Status.ACCEPTED, null);
+    private static final Result DUPLICATE = new Result(Status.DUPLICATE, null);
+    private static final Result OVERLOADED = new Result(Status.OVERLOADED, null);
+    private static final Result CLOSED = new Result(Status.CLOSED, null);
+
+    private final BlockChain blockChain;
+    private final ArrayBlockingQueue<Submission> admission;
+    private final int maxBatch;
+    private final int maxWaiting;
+    private final ExecutorService waiters;
+    private final Thread validator;
+    private final AtomicInteger waiting = new AtomicInteger();
+    private volatile boolean closed;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong admissionNanos = new AtomicLong();
+    private final AtomicLong maxAdmissionNanos = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * @param queueCapacity size of the admission queue
+     * @param maxBatch      most transactions handed to the chain at once
+     * @param maxWaiting    most submissions waiting for room in the queue before new ones are
+     *                      turned away
+     */
+    public TxSubmissionService(BlockChain blockChain, int queueCapacity, int maxBatch, int maxWaiting) {
+        this.blockChain = blockChain;
+        this.admission = new ArrayBlockingQueue<>(queueCapacity);
+        this.maxBatch = maxBatch;
+        this.maxWaiting = maxWaiting;
+        this.waiters = newVirtualThreadExecutor();
+        this.validator = new Thread(this::validateLoop, "tx-validator");
+        validator.setDaemon(true);
+        validator.start();
+    }
+
+    /**
+     * @return an executor running every task on a new virtual thread, or on a few platform threads
+     *         if the runtime has no virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "tx-admission");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /** @return a future completed once {@code tx} has been checked, or right away if it cannot be queued */
+    public CompletableFuture<Result> submit(Transaction tx) {
+        Submission submission = new Submission(tx);
+        if (closed) {
+            submission.result.complete(CLOSED);
+            return submission.result;
+        }
+        if (admission.offer(submission)) {
+            admitted(submission);
+            if (closed)
+                drainClosed(); //close() may have drained the queue before the offer
+            return submission.result;
+        }
+        if (waiting.incrementAndGet() > maxWaiting) {
+            waiting.decrementAndGet();
+            submission.result.complete(OVERLOADED);
+            return submission.result;
+        }
+        waiters.execute(() -> {
+            try {
+                admission.put(submission);
+                admitted(submission);
+                if (closed)
+                    drainClosed();
+            } catch (InterruptedException e) {
+                submission.result.complete(CLOSED);
+            } finally {
+                waiting.decrementAndGet();
+            }
+        });
+        return submission.result;
+    }
+
+    private void admitted(Submission submission) {
+        long nanos = System.nanoTime() - submission.created;
+        admitted.incrementAndGet();
+        admissionNanos.addAndGet(nanos);
+        maxAdmissionNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private void validateLoop() {
+        List<Submission> batch = new ArrayList<>(maxBatch);
+        List<Transaction> txs = new ArrayList<>(maxBatch);
+        while (!closed) {
+            try {
+                batch.add(admission.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            admission.drainTo(batch, maxBatch - 1);
+            try {
+                validate(batch, txs);
+            } catch (RuntimeException e) {
+                e.printStackTrace(System.err);
+                for (Submission submission : batch)
+                    submission.result.completeExceptionally(e);
+            }
+            batch.clear();
+            txs.clear();
+        }
+    }
+
+    private void validate(List<Submission> batch, List<Transaction> txs) {
+        RejectionCache invalidTxs = blockChain.getInvalidTxs();
+        List<Submission> unknown = new ArrayList<>(batch.size());
+        for (Submission submission : batch) {
+            Transaction tx = submission.tx;
+            //a claimed hash is neither looked up nor remembered
+            RejectionCache.Reason cached = tx == null || !tx.hasValidHash() ? RejectionCache.Reason.MALFORMED
+                    : invalidTxs.lookup(tx.getHash256());
+            if (cached != null) {
+                submission.result.complete(new Result(Status.REJECTED, cached));
+            } else {
+                unknown.add(submission);
+                txs.add(tx);
+            }
+        }
+        if (txs.isEmpty())
+            return;
+        boolean[] added = new boolean[txs.size()];
+        RejectionCache.Reason[] reasons = blockChain.addTransactions(txs, added);
+        batches.incrementAndGet();
+        for (int i = 0; i < reasons.length; i++) {
+            Result result;
+            if (reasons[i] != null) {
+                invalidTxs.reject(txs.get(i).getHash256(), reasons[i]);
+                result = new Result(Status.REJECTED, reasons[i]);
+            } else {
+                result = added[i] ? ACCEPTED : DUPLICATE;
+            }
+            unknown.get(i).result.complete(result);
+        }
+    }
+
+    /** @return transactions admitted but not yet validated */
+    public int getQueueDepth() {
+        return admission.size();
+    }
+
+    /** @return submissions waiting for room in the admission queue */
+    public int getWaiting() {
+        return waiting.get();
+    }
+
+    /** @return mean time from {@link #submit} until the transaction entered the queue */
+    public double getAverageAdmissionLatencyNanos() {
+        long count = admitted.get();
+        return count == 0 ? 0 : (double) admissionNanos.get() / count;
+    }
+
+    public long getMaxAdmissionLatencyNanos() {
+        return maxAdmissionNanos.get();
+    }
+
+    /** @return number of batches handed to the chain so far */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    /** stop accepting transactions; queued ones that were not validated yet complete as CLOSED */
+    public void close() {
+        closed = true;
+        waiters.shutdownNow();
+        validator.interrupt();
+        if (Thread.currentThread() != validator) {
+            try {
+                validator.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        drainClosed();
+    }
+
+    // complete everything left in the queue as CLOSED
+    private void drainClosed() {
+        List<Submission> left = new ArrayList<>();
+        admission.drainTo(left);
+        for (Submission submission : left)
+            submission.result.complete(CLOSED);
+    }
+
+    private static class Submission {
+        private final Transaction tx;
+        private final long created = System.nanoTime();
+        private final CompletableFuture<Result> result = new CompletableFuture<>();
+
+        private Submission(Transaction tx) {
+            this.tx = tx;
+        }
+    }
+}
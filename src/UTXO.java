@@ -1,24 +1,37 @@
-import java.util.Arrays;
 
 public class UTXO implements Comparable<UTXO> {
 
     /** Hash of the transaction from which this UTXO originates */
-    private byte[] txHash;
+    private Hash256 txHash;
 
     /** Index of the corresponding output in said transaction */
     private int index;
 
     /**
      * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
-     * hash is {@code txHash}
+     * hash is {@code txHash}; throws an {@code IllegalArgumentException} if {@code txHash} is not
+     * 32 bytes long, see {@link Hash256#tryOf} for hashes that may be malformed
      */
     public UTXO(byte[] txHash, int index) {
-        this.txHash = Arrays.copyOf(txHash, txHash.length);
+        this(Hash256.of(txHash), index);
+    }
+
+    /**
+     * Creates a new UTXO corresponding to the output with index <index> in the transaction whose
+     * hash is {@code txHash}
+     */
+    public UTXO(Hash256 txHash, int index) {
+        this.txHash = txHash;
         this.index = index;
     }
 
     /** @return the transaction hash of this UTXO */
     public byte[] getTxHash() {
+        return txHash.toByteArray();
+    }
+
+    /** @return the transaction hash of this UTXO */
+    public Hash256 getTxHash256() {
         return txHash;
     }
 
@@ -29,7 +42,7 @@ public class UTXO implements Comparable<UTXO> {
 
     /**
      * Compares this UTXO to the one specified by {@code other}, considering them equal if they have
-     * {@code txHash} arrays with equal contents and equal {@code index} values
+     * equal {@code txHash} and {@code index} values
      */
     public boolean equals(Object other) {
         if (other == null) {
@@ -40,15 +53,7 @@ public class UTXO implements Comparable<UTXO> {
         }
 
         UTXO utxo = (UTXO) other;
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (hash.length != txHash.length || index != in)
-            return false;
-        for (int i = 0; i < hash.length; i++) {
-            if (hash[i] != txHash[i])
-                return false;
-        }
-        return true;
+        return index == utxo.index && txHash.equals(utxo.txHash);
     }
 
     /**
@@ -58,34 +63,23 @@ public class UTXO implements Comparable<UTXO> {
     public int hashCode() {
         int hash = 1;
         hash = hash * 17 + index;
-        hash = hash * 31 + Arrays.hashCode(txHash);
+        hash = hash * 31 + txHash.hashCode();
         return hash;
     }
 
-    /** Compares this UTXO to the one specified by {@code utxo} */
+    /** @return a 64 bit hash code that respects equality of UTXOs like {@link #hashCode} */
+    public long longHashCode() {
+        return txHash.longHashCode() * 31 + index;
+    }
+
+    /**
+     * Compares this UTXO to the one specified by {@code utxo}, ordering by {@code txHash} first and
+     * by {@code index} second, so all UTXOs of one transaction are adjacent in sorted order
+     */
     public int compareTo(UTXO utxo) {
-        byte[] hash = utxo.txHash;
-        int in = utxo.index;
-        if (in > index)
-            return -1;
-        else if (in < index)
-            return 1;
-        else {
-            int len1 = txHash.length;
-            int len2 = hash.length;
-            if (len2 > len1)
-                return -1;
-            else if (len2 < len1)
-                return 1;
-            else {
-                for (int i = 0; i < len1; i++) {
-                    if (hash[i] > txHash[i])
-                        return -1;
-                    else if (hash[i] < txHash[i])
-                        return 1;
-                }
-                return 0;
-            }
-        }
+        int c = txHash.compareTo(utxo.txHash);
+        if (c != 0)
+            return c;
+        return Integer.compare(index, utxo.index);
     }
 }
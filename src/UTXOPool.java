@@ -1,32 +1,167 @@
+import java.security.PublicKey;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.SortedSet;
+import java.util.Spliterator;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+/**
+ * Adding and removing different UTXOs from several threads at once is safe, which lets
+ * {@link ShardedUTXOApplier} apply a block in parallel. Queries must not run concurrently with
+ * updates.
+ */
 public class UTXOPool {
 
     /**
      * The current collection of UTXOs, with each one mapped to its corresponding transaction output
      */
-    private HashMap<UTXO, Transaction.Output> H;
+    private ConcurrentHashMap<UTXO, Transaction.Output> H;
+
+    /**
+     * The UTXOs of {@code H} grouped by the address of their output. The sets are only modified
+     * inside {@code compute} calls, which lock their entry.
+     */
+    private ConcurrentHashMap<PublicKey, Set<UTXO>> byAddress;
+
+    /** The UTXOs of {@code H} in {@link UTXO#compareTo} order, null unless enabled */
+    private ConcurrentSkipListSet<UTXO> sorted;
+
+    private static final int INITIAL_FILTER_CAPACITY = 1024;
+    private static final double FILTER_FP_RATE = 0.01;
+
+    /**
+     * Holds every UTXO of {@code H}, so lookups of UTXOs that are not in the pool mostly end here.
+     * Replaced by a larger one once the pool outgrows it.
+     */
+    private volatile CountingBloomFilter filter;
+
+    /** shared by add and remove, exclusive while the filter is replaced */
+    private final ReentrantReadWriteLock filterLock = new ReentrantReadWriteLock();
+
+    /** estimated bytes retained by the entries of {@code H} and the indexes over them */
+    private final AtomicLong estimatedBytes = new AtomicLong();
 
     /** Creates a new empty UTXOPool */
     public UTXOPool() {
-        H = new HashMap<UTXO, Transaction.Output>();
+        H = new ConcurrentHashMap<UTXO, Transaction.Output>();
+        byAddress = new ConcurrentHashMap<PublicKey, Set<UTXO>>();
+        filter = new CountingBloomFilter(INITIAL_FILTER_CAPACITY, FILTER_FP_RATE);
     }
 
     /** Creates a new UTXOPool that is a copy of {@code uPool} */
     public UTXOPool(UTXOPool uPool) {
-        H = new HashMap<UTXO, Transaction.Output>(uPool.H);
+        H = new ConcurrentHashMap<UTXO, Transaction.Output>(uPool.H);
+        byAddress = new ConcurrentHashMap<PublicKey, Set<UTXO>>();
+        for (Map.Entry<PublicKey, Set<UTXO>> entry : uPool.byAddress.entrySet())
+            byAddress.put(entry.getKey(), new HashSet<UTXO>(entry.getValue()));
+        if (uPool.sorted != null)
+            sorted = new ConcurrentSkipListSet<UTXO>(uPool.sorted);
+        filter = new CountingBloomFilter(uPool.filter);
+        estimatedBytes.set(uPool.estimatedBytes.get());
+    }
+
+    /**
+     * Keep a sorted index of the pool from now on, which makes {@link #utxosOfTx} a range scan.
+     * Costs one tree entry per UTXO and a logarithmic update on every add and remove.
+     */
+    public void enableSortedIndex() {
+        if (sorted == null) {
+            sorted = new ConcurrentSkipListSet<UTXO>(H.keySet());
+            estimatedBytes.addAndGet(H.size() * MemoryEstimator.SKIP_LIST_ENTRY);
+        }
+    }
+
+    /** @return the estimated number of bytes the pool's entries and indexes retain */
+    public long getEstimatedBytes() {
+        return estimatedBytes.get();
+    }
+
+    // map entry, UTXO, output and the index entries of one UTXO
+    private long entryBytes(Transaction.Output txOut) {
+        long bytes = MemoryEstimator.HASH_MAP_ENTRY + MemoryEstimator.UTXO + MemoryEstimator.output(txOut);
+        if (txOut.address != null)
+            bytes += MemoryEstimator.HASH_MAP_ENTRY;
+        if (sorted != null)
+            bytes += MemoryEstimator.SKIP_LIST_ENTRY;
+        return bytes;
     }
 
     /** Adds a mapping from UTXO {@code utxo} to transaction output @code{txOut} to the pool */
     public void addUTXO(UTXO utxo, Transaction.Output txOut) {
-        H.put(utxo, txOut);
+        Transaction.Output replaced;
+        filterLock.readLock().lock();
+        try {
+            replaced = H.put(utxo, txOut);
+            if (replaced == null)
+                filter.add(utxo.longHashCode());
+        } finally {
+            filterLock.readLock().unlock();
+        }
+        if (H.size() > filter.capacity())
+            growFilter();
+        estimatedBytes.addAndGet(entryBytes(txOut) - (replaced == null ? 0 : entryBytes(replaced)));
+        if (replaced != null)
+            unindex(utxo, replaced);
+        if (txOut.address != null)
+            byAddress.compute(txOut.address, (address, owned) -> {
+                if (owned == null)
+                    owned = new HashSet<UTXO>();
+                owned.add(utxo);
+                return owned;
+            });
+        if (sorted != null)
+            sorted.add(utxo);
     }
 
     /** Removes the UTXO {@code utxo} from the pool */
     public void removeUTXO(UTXO utxo) {
-        H.remove(utxo);
+        Transaction.Output removed;
+        filterLock.readLock().lock();
+        try {
+            removed = H.remove(utxo);
+            if (removed != null)
+                filter.remove(utxo.longHashCode());
+        } finally {
+            filterLock.readLock().unlock();
+        }
+        if (removed != null) {
+            estimatedBytes.addAndGet(-entryBytes(removed));
+            unindex(utxo, removed);
+            if (sorted != null)
+                sorted.remove(utxo);
+        }
+    }
+
+    private void growFilter() {
+        filterLock.writeLock().lock();
+        try {
+            if (H.size() <= filter.capacity())
+                return; //another thread was faster
+            CountingBloomFilter larger = new CountingBloomFilter(2 * H.size(), FILTER_FP_RATE);
+            for (UTXO ut : H.keySet())
+                larger.add(ut.longHashCode());
+            filter = larger;
+        } finally {
+            filterLock.writeLock().unlock();
+        }
+    }
+
+    private void unindex(UTXO utxo, Transaction.Output txOut) {
+        if (txOut.address == null)
+            return;
+        byAddress.computeIfPresent(txOut.address, (address, owned) -> {
+            owned.remove(utxo);
+            return owned.isEmpty() ? null : owned;
+        });
     }
 
     /**
@@ -34,12 +169,80 @@ public class UTXOPool {
      *         not in the pool.
      */
     public Transaction.Output getTxOutput(UTXO ut) {
+        if (!filter.mightContain(ut.longHashCode()))
+            return null;
         return H.get(ut);
     }
 
     /** @return true if UTXO {@code utxo} is in the pool and false otherwise */
     public boolean contains(UTXO utxo) {
-        return H.containsKey(utxo);
+        return filter.mightContain(utxo.longHashCode()) && H.containsKey(utxo);
+    }
+
+    /** Returns an {@code ArrayList} of the UTXOs in the pool whose output goes to {@code address} */
+    public ArrayList<UTXO> utxosOf(PublicKey address) {
+        Set<UTXO> owned = address == null ? null : byAddress.get(address);
+        if (owned == null)
+            return new ArrayList<UTXO>();
+        return new ArrayList<UTXO>(owned);
+    }
+
+    /** @return the total value of the UTXOs in the pool whose output goes to {@code address} */
+    public long balanceOf(PublicKey address) {
+        Set<UTXO> owned = address == null ? null : byAddress.get(address);
+        long balance = 0;
+        if (owned != null)
+            for (UTXO ut : owned)
+                balance = Math.addExact(balance, H.get(ut).value);
+        return balance;
+    }
+
+    /**
+     * @return the UTXOs in the pool created by the transaction with hash {@code txHash}, in index
+     *         order. A read-only view into the sorted index if it is enabled, a copy otherwise.
+     */
+    public SortedSet<UTXO> utxosOfTx(byte[] txHash) {
+        Hash256 hash = Hash256.tryOf(txHash);
+        return hash == null ? Collections.emptySortedSet() : utxosOfTx(hash);
+    }
+
+    /** Same as {@link #utxosOfTx(byte[])} */
+    public SortedSet<UTXO> utxosOfTx(Hash256 txHash) {
+        UTXO first = new UTXO(txHash, Integer.MIN_VALUE);
+        UTXO last = new UTXO(txHash, Integer.MAX_VALUE);
+        if (sorted != null)
+            return Collections.unmodifiableSortedSet(sorted.subSet(first, true, last, true));
+        TreeSet<UTXO> ofTx = new TreeSet<UTXO>();
+        for (UTXO ut : H.keySet())
+            if (ut.compareTo(first) >= 0 && ut.compareTo(last) <= 0)
+                ofTx.add(ut);
+        return ofTx;
+    }
+
+    /**
+     * @return a spliterator over the UTXOs in the pool without copying them, in sorted order if
+     *         the sorted index is enabled. The pool must not be modified while it is in use.
+     */
+    public Spliterator<UTXO> spliterator() {
+        return sorted != null ? sorted.spliterator() : H.keySet().spliterator();
+    }
+
+    /** @return a stream over the UTXOs in the pool backed by {@link #spliterator} */
+    public Stream<UTXO> stream(boolean parallel) {
+        return StreamSupport.stream(spliterator(), parallel);
+    }
+
+    /**
+     * @return a stream over the UTXOs in the pool together with their outputs, without copying.
+     *         The pool must not be modified while it is in use.
+     */
+    public Stream<Map.Entry<UTXO, Transaction.Output>> entries(boolean parallel) {
+        return StreamSupport.stream(Collections.unmodifiableMap(H).entrySet().spliterator(), parallel);
+    }
+
+    /** @return the number of UTXOs in the pool */
+    public int size() {
+        return H.size();
     }
 
     /** Returns an {@code ArrayList} of all UTXOs in the pool */